@@ -2,6 +2,7 @@ import org.grouplens.lenskit.transform.normalize.UnitVectorNormalizer
 import org.grouplens.lenskit.transform.normalize.VectorNormalizer
 import org.grouplens.lenskit.transform.normalize.ItemVectorNormalizer
 import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer
+import org.lenskit.api.ItemBasedItemRecommender
 import org.lenskit.api.ItemBasedItemScorer
 import org.lenskit.basic.ConstantItemScorer
 import org.lenskit.basic.ConstantItemScorer.Value
@@ -9,13 +10,29 @@ import org.lenskit.baseline.BaselineScorer
 import org.lenskit.baseline.UserMeanItemScorer
 import org.lenskit.knn.MinNeighbors
 import org.lenskit.knn.item.ItemItemItemBasedItemScorer
+import org.lenskit.knn.item.RelatedItemsItemBasedItemRecommender
 import org.lenskit.knn.item.SimilaritySumNeighborhoodScorer
 import org.lenskit.knn.item.NeighborhoodScorer
 import org.lenskit.knn.NeighborhoodSize
+import org.lenskit.knn.item.model.ItemItemModel
+import org.lenskit.knn.item.model.CooccurrenceItemItemModelProvider
+import org.lenskit.knn.item.model.MappedSimilarityModelProvider
+import org.lenskit.knn.item.model.QuantizedSimilarityModelProvider
+import org.lenskit.knn.item.MappedModelFile
+import org.lenskit.knn.item.ReverseNeighborhoodScoring
+import org.lenskit.knn.item.SimilarityQuantizationScale
+import org.lenskit.knn.item.model.NeighborIterationStrategy
+import org.lenskit.knn.item.model.MinHashNeighborIterationStrategy
+import org.lenskit.knn.item.MinHashBands
+import org.lenskit.knn.item.MinHashBandRows
+import org.lenskit.knn.item.UnaryRatings
 
 // ... and configure the item scorer.  The bind and set methods
 // are what you use to do that. Here, we want an item-item scorer.
 bind ItemBasedItemScorer to ItemItemItemBasedItemScorer
+// Answer single-item queries from related-item lists precomputed at training
+// time; the list length is the recommendation count from the app config.
+bind ItemBasedItemRecommender to RelatedItemsItemBasedItemRecommender
 // Item-item works best with a minimum neighbor count
 set MinNeighbors to 2
 set NeighborhoodSize to 10
@@ -32,3 +49,34 @@ within (UserVectorNormalizer) {
 // Neighborhood scorer that computes the sum of neighborhood similarities.
 // We don't want the Weighted Average
 bind NeighborhoodScorer to SimilaritySumNeighborhoodScorer
+// With a symmetric model (e.g. an unlimited ModelSize), score from the basket
+// items' rows instead of scanning every candidate's row; the scores are the same:
+// set ReverseNeighborhoodScoring to true
+
+// For cosine on unary data, the item-item model can be built by sparse matrix
+// multiplication instead of probing candidate pairs:
+// bind ItemItemModel toProvider CooccurrenceItemItemModelProvider
+// For purely unary data, the cosine of the binary item vectors is the number of
+// common users over the root of the product of the two items' user counts,
+// |A and B| / sqrt(|A| |B|); with UnaryRatings the build context keeps no values
+// and the provider above computes it from user counts alone. It ignores rating
+// values and the UnitVectorNormalizer weighting configured above, so switching
+// to it changes the model:
+// set UnaryRatings to true
+
+// To keep the similarity matrix out of the serialized model, write it to a
+// memory-mapped file; Test runs then map it instead of deserializing it:
+// bind ItemItemModel toProvider MappedSimilarityModelProvider
+// set MappedModelFile to "etc/basket.sims"
+
+// To shrink the serialized model, store neighbor IDs delta-encoded and scores as
+// 8- or 16-bit integers (the default scale of 100 keeps two decimals exactly):
+// bind ItemItemModel toProvider QuantizedSimilarityModelProvider
+// set SimilarityQuantizationScale to 100
+
+// On very large catalogues, propose only the neighbors that MinHash signatures of the
+// items' users suggest are similar, instead of every co-rated item.  This drops some
+// weak neighbors; more bands (or fewer rows per band) find more of them.  The default
+// 128 bands of 1 row keep 95% of the top 10 neighbors here, but apps share so few users
+// that this proposes nearly every co-rated pair, so it is no faster on this data:
+// bind NeighborIterationStrategy to MinHashNeighborIterationStrategy
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityCollectionDAO;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entities;
+import org.lenskit.data.entities.Entity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable, memory-mapped dictionary between app IDs and package names.
+ *
+ * The dictionary file holds the IDs in increasing order, the offset of each name in a single
+ * UTF-8 byte arena, and the ID positions sorted by name, so both directions are binary
+ * searches over the mapped file.  It is written at train time from the app name file, so
+ * query runs can resolve names without loading the data source.
+ */
+public class AppDictionary {
+    private static final Logger logger = LoggerFactory.getLogger(AppDictionary.class);
+    private static final int MAGIC = 0x4c4b4e4d;  // "LKNM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int size;
+    private final int offsetStart;
+    private final int byNameStart;
+    private final int arenaStart;
+
+    private AppDictionary(ByteBuffer buf) throws IOException {
+        buffer = buf;
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+            throw new IOException("not an app dictionary file");
+        }
+        size = buf.getInt(8);
+        offsetStart = HEADER_SIZE + size * 8;
+        byNameStart = offsetStart + (size + 1) * 4;
+        arenaStart = byNameStart + size * 4;
+    }
+
+    /**
+     * Map a dictionary file.
+     *
+     * @param file The file, as written by {@link #write(File, File)}.
+     * @return The dictionary.
+     */
+    public static AppDictionary open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            return new AppDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Write a dictionary file from an app name file ({@code id,name} lines).
+     *
+     * @param names The app name CSV file.
+     * @param file  The dictionary file to write.
+     */
+    public static void write(File names, File file) throws IOException {
+        LongArrayList ids = new LongArrayList();
+        final List<byte[]> nameBytes = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(names), StandardCharsets.UTF_8))) {
+            String line;
+            int lineNo = 0;
+            while ((line = br.readLine()) != null) {
+                lineNo++;
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] str = line.split(",");
+                long id;
+                try {
+                    id = str.length >= 2 ? Long.parseLong(str[0].trim()) : -1;
+                } catch (NumberFormatException e) {
+                    id = -1;
+                }
+                if (id < 0) {
+                    logger.warn("{}:{}: skipping malformed app name line", names, lineNo);
+                    continue;
+                }
+                ids.add(id);
+                nameBytes.add(str[1].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        final int n = ids.size();
+        final long[] idArray = ids.elements();
+
+        // order the entries by ID, then the ID positions by name
+        int[] byId = identity(n);
+        IntArrays.quickSort(byId, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(idArray[a], idArray[b]);
+            }
+        });
+        final byte[][] sortedNames = new byte[n][];
+        long[] sortedIds = new long[n];
+        for (int i = 0; i < n; i++) {
+            sortedIds[i] = idArray[byId[i]];
+            sortedNames[i] = nameBytes.get(byId[i]);
+        }
+        int[] byName = identity(n);
+        IntArrays.quickSort(byName, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return compareBytes(sortedNames[a], sortedNames[b]);
+            }
+        });
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(0);
+            for (long id: sortedIds) {
+                out.writeLong(id);
+            }
+            int off = 0;
+            out.writeInt(off);
+            for (byte[] name: sortedNames) {
+                off += name.length;
+                out.writeInt(off);
+            }
+            for (int i: byName) {
+                out.writeInt(i);
+            }
+            for (byte[] name: sortedNames) {
+                out.write(name);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot move " + tmp + " to " + file);
+        }
+    }
+
+    private static int[] identity(int n) {
+        int[] a = new int[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i;
+        }
+        return a;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xff) - (b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Get the number of apps in the dictionary.
+     */
+    public int size() {
+        return size;
+    }
+
+    private long idAt(int i) {
+        return buffer.getLong(HEADER_SIZE + i * 8);
+    }
+
+    private int nameStart(int i) {
+        return arenaStart + buffer.getInt(offsetStart + i * 4);
+    }
+
+    private int nameEnd(int i) {
+        return arenaStart + buffer.getInt(offsetStart + (i + 1) * 4);
+    }
+
+    /**
+     * Look up the name of an app.
+     *
+     * @param id The app ID.
+     * @return The package name, or {@code null} if the app is not in the dictionary.
+     */
+    public String getName(long id) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long key = idAt(mid);
+            if (key < id) {
+                lo = mid + 1;
+            } else if (key > id) {
+                hi = mid - 1;
+            } else {
+                int start = nameStart(mid);
+                byte[] bytes = new byte[nameEnd(mid) - start];
+                for (int k = 0; k < bytes.length; k++) {
+                    bytes[k] = buffer.get(start + k);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Look up the ID of an app.
+     *
+     * @param name The package name (without quotes).
+     * @return The app ID, or -1 if the name is not in the dictionary.
+     */
+    public long findId(String name) {
+        byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int idx = buffer.getInt(byNameStart + mid * 4);
+            int c = compareName(idx, target);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return idAt(idx);
+            }
+        }
+        return -1;
+    }
+
+    private int compareName(int i, byte[] target) {
+        int start = nameStart(i);
+        int len = nameEnd(i) - start;
+        int n = Math.min(len, target.length);
+        for (int k = 0; k < n; k++) {
+            int c = (buffer.get(start + k) & 0xff) - (target[k] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return len - target.length;
+    }
+
+    /**
+     * Create a data access object containing just the apps as item entities, enough for a
+     * recommender to find its candidate items.
+     *
+     * @return The DAO.
+     */
+    public DataAccessObject createItemDAO() {
+        List<Entity> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(Entities.create(CommonTypes.ITEM, idAt(i)));
+        }
+        return EntityCollectionDAO.create(items);
+    }
+}
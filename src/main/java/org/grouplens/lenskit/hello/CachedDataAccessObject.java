@@ -0,0 +1,182 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.lenskit.data.dao.AbstractDataAccessObject;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityQuery;
+import org.lenskit.data.dao.SortKey;
+import org.lenskit.data.entities.Attribute;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entities;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.entities.EntityType;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Data access object backed by a {@link RatingsCache}.
+ *
+ * Ratings, and the users and items they mention, are served from the cache's mapped columns:
+ * rating entities are only created while a query streams them, and a user or item filter
+ * narrows the scan before any entity is built.  Users and items that have an entity among the
+ * other entities (such as the named items) are returned as those entities.  Every other type is
+ * answered by the other entities alone.  {@link CachedRatingVectorPDAO} reads rating vectors
+ * from the cache without going through entities at all.
+ */
+public class CachedDataAccessObject extends AbstractDataAccessObject {
+    private final DataAccessObject delegate;
+    private final RatingsCache cache;
+
+    CachedDataAccessObject(DataAccessObject delegate, RatingsCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    /**
+     * Get the ratings cache behind this DAO.
+     */
+    public RatingsCache getRatingsCache() {
+        return cache;
+    }
+
+    /**
+     * Get the IDs of the users or items mentioned by the cached ratings.
+     */
+    private LongSortedSet cachedIds(EntityType type) {
+        return type.equals(CommonTypes.USER) ? cache.getUserIds() : cache.getItemIds();
+    }
+
+    private static boolean isDerived(EntityType type) {
+        return type.equals(CommonTypes.USER) || type.equals(CommonTypes.ITEM);
+    }
+
+    @Override
+    public Set<EntityType> getEntityTypes() {
+        return ImmutableSet.<EntityType>builder()
+                           .addAll(delegate.getEntityTypes())
+                           .add(CommonTypes.RATING, CommonTypes.USER, CommonTypes.ITEM)
+                           .build();
+    }
+
+    @Override
+    public LongSet getEntityIds(EntityType type) {
+        if (type.equals(CommonTypes.RATING)) {
+            return cache.getRatingIds();
+        } else if (isDerived(type)) {
+            return LongUtils.setUnion(cachedIds(type), LongUtils.packedSet(delegate.getEntityIds(type)));
+        } else {
+            return delegate.getEntityIds(type);
+        }
+    }
+
+    @Override
+    public Entity lookupEntity(EntityType type, long id) {
+        if (type.equals(CommonTypes.RATING)) {
+            return cache.lookupRating(id);
+        }
+        Entity e = delegate.lookupEntity(type, id);
+        if (e == null && isDerived(type) && cachedIds(type).contains(id)) {
+            e = Entities.create(type, id);
+        }
+        return e;
+    }
+
+    @Override
+    public <E extends Entity> E lookupEntity(EntityType type, long id, Class<E> view) {
+        Entity e = lookupEntity(type, id);
+        return e == null ? null : Entities.project(e, view);
+    }
+
+    @Override
+    public <E extends Entity> ObjectStream<E> streamEntities(EntityQuery<E> query) {
+        EntityType type = query.getEntityType();
+        ObjectStream<Entity> entities;
+        if (type.equals(CommonTypes.RATING)) {
+            Long user = null;
+            Long item = null;
+            for (Attribute<?> attr: query.getFilterFields()) {
+                if (attr.getTypedName().equals(CommonAttributes.USER_ID)) {
+                    user = (Long) attr.getValue();
+                } else if (attr.getTypedName().equals(CommonAttributes.ITEM_ID)) {
+                    item = (Long) attr.getValue();
+                }
+            }
+            entities = cache.streamRatings(user, item);
+        } else if (isDerived(type)) {
+            entities = streamDerived(type);
+        } else {
+            return delegate.streamEntities(query);
+        }
+
+        entities = ObjectStreams.filter(entities, query);
+        List<SortKey> keys = query.getSortKeys();
+        if (!keys.isEmpty()) {
+            Ordering<Entity> order = keys.get(0).ordering();
+            for (SortKey key: keys.subList(1, keys.size())) {
+                order = order.compound(key.ordering());
+            }
+            entities = ObjectStreams.sort(entities, order);
+        }
+        return ObjectStreams.transform(entities, Entities.projection(query.getViewType()));
+    }
+
+    /**
+     * Stream all users or items, in ID order.
+     */
+    private ObjectStream<Entity> streamDerived(final EntityType type) {
+        final LongIterator ids = getEntityIds(type).iterator();
+        return ObjectStreams.wrap(new Iterator<Entity>() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public Entity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                long id = ids.nextLong();
+                Entity e = delegate.lookupEntity(type, id);
+                return e != null ? e : Entities.create(type, id);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+}
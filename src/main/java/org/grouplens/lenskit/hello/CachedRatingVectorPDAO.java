@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.data.ratings.StandardRatingVectorPDAO;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+
+import javax.inject.Inject;
+
+/**
+ * Rating vector DAO that reads from the {@link RatingsCache} when the data comes from one,
+ * without going through rating entities.  With any other DAO it behaves like
+ * {@link StandardRatingVectorPDAO}.
+ */
+public class CachedRatingVectorPDAO implements RatingVectorPDAO {
+    private final RatingsCache cache;
+    private final RatingVectorPDAO delegate;
+
+    @Inject
+    public CachedRatingVectorPDAO(DataAccessObject dao) {
+        if (dao instanceof CachedDataAccessObject) {
+            cache = ((CachedDataAccessObject) dao).getRatingsCache();
+            delegate = null;
+        } else {
+            cache = null;
+            delegate = new StandardRatingVectorPDAO(dao);
+        }
+    }
+
+    @Override
+    public Long2DoubleMap userRatingVector(long user) {
+        return cache != null ? cache.userRatingVector(user) : delegate.userRatingVector(user);
+    }
+
+    @Override
+    public ObjectStream<IdBox<Long2DoubleMap>> streamUsers() {
+        return cache != null ? cache.streamUsers() : delegate.streamUsers();
+    }
+}
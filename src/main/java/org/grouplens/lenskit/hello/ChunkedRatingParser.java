@@ -0,0 +1,326 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Parses a ratings CSV file in parallel.
+ *
+ * The file is cut into byte ranges that end on line boundaries, and each range is mapped and
+ * parsed on its own thread.  Fields are scanned directly from the mapped bytes, and numbers are
+ * decoded without creating strings; only values in an unusual notation (such as exponents)
+ * fall back to {@link Double#parseDouble(String)}.  The chunks are concatenated in file order,
+ * so the result is the same as a sequential parse.
+ */
+class ChunkedRatingParser {
+    /**
+     * Target size of a chunk, in bytes.
+     */
+    static final int CHUNK_SIZE = 1 << 26;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final File file;
+    private final byte delimiter;
+    private final boolean header;
+    private final int nthreads;
+    private final long chunkSize;
+
+    ChunkedRatingParser(File file, byte delimiter, boolean header, int nthreads) {
+        this(file, delimiter, header, nthreads, CHUNK_SIZE);
+    }
+
+    ChunkedRatingParser(File file, byte delimiter, boolean header, int nthreads, long chunkSize) {
+        this.file = file;
+        this.delimiter = delimiter;
+        this.header = header;
+        this.nthreads = nthreads;
+        this.chunkSize = chunkSize;
+    }
+
+    RatingsCache.RatingColumns parse() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             final FileChannel channel = raf.getChannel()) {
+            final long[] bounds = chunkBounds(channel);
+            int nchunks = bounds.length - 1;
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(nthreads, Math.max(nchunks, 1)));
+            List<Future<RatingsCache.RatingColumns>> results = new ArrayList<>(nchunks);
+            try {
+                for (int c = 0; c < nchunks; c++) {
+                    final int chunk = c;
+                    results.add(pool.submit(new Callable<RatingsCache.RatingColumns>() {
+                        @Override
+                        public RatingsCache.RatingColumns call() throws IOException {
+                            long start = bounds[chunk];
+                            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, bounds[chunk + 1] - start);
+                            return parseChunk(buf, chunk == 0 && header);
+                        }
+                    }));
+                }
+
+                List<RatingsCache.RatingColumns> parts = new ArrayList<>(nchunks);
+                long total = 0;
+                for (Future<RatingsCache.RatingColumns> f: results) {
+                    RatingsCache.RatingColumns part = f.get();
+                    parts.add(part);
+                    total += part.size();
+                }
+                results.clear();
+                if (total > Integer.MAX_VALUE) {
+                    throw new IOException(file + " has too many ratings (" + total + ")");
+                }
+
+                // size the columns exactly, and let each chunk go once it is copied
+                RatingsCache.RatingColumns cols = new RatingsCache.RatingColumns();
+                cols.users.ensureCapacity((int) total);
+                cols.items.ensureCapacity((int) total);
+                cols.values.ensureCapacity((int) total);
+                cols.timestamps.ensureCapacity((int) total);
+                for (int c = 0; c < nchunks; c++) {
+                    RatingsCache.RatingColumns part = parts.set(c, null);
+                    cols.users.addAll(part.users);
+                    cols.items.addAll(part.items);
+                    cols.values.addAll(part.values);
+                    cols.timestamps.addAll(part.timestamps);
+                }
+                return cols;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while parsing " + file, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    // malformed lines fail as they do in a sequential parse
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException("cannot parse " + file, e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Cut the file into chunks that each end just after a newline (or at the end of the file).
+     */
+    private long[] chunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = chunkSize;
+        while (pos < size) {
+            // advance to the end of the line containing pos
+            long next = -1;
+            long scan = pos;
+            while (next < 0 && scan < size) {
+                probe.clear();
+                int n = channel.read(probe, scan);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        next = scan + i + 1;
+                        break;
+                    }
+                }
+                scan += n;
+            }
+            if (next < 0 || next >= size) {
+                break;
+            }
+            bounds.add(next);
+            pos = next + chunkSize;
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Parse the lines of one chunk.
+     */
+    RatingsCache.RatingColumns parseChunk(ByteBuffer buf, boolean skipFirst) {
+        RatingsCache.RatingColumns cols = new RatingsCache.RatingColumns();
+        int limit = buf.limit();
+        int pos = 0;
+        if (skipFirst) {
+            pos = lineEnd(buf, 0, limit) + 1;
+        }
+        int[] fieldStarts = new int[4];
+        int[] fieldEnds = new int[4];
+        while (pos < limit) {
+            int end = lineEnd(buf, pos, limit);
+            int lineEnd = end;
+            if (lineEnd > pos && buf.get(lineEnd - 1) == '\r') {
+                lineEnd -= 1;
+            }
+            if (lineEnd > pos) {
+                int nfields = 0;
+                int start = pos;
+                for (int i = pos; i <= lineEnd && nfields < 4; i++) {
+                    if (i == lineEnd || buf.get(i) == delimiter) {
+                        fieldStarts[nfields] = start;
+                        fieldEnds[nfields] = i;
+                        nfields++;
+                        start = i + 1;
+                    }
+                }
+                if (nfields < 3) {
+                    throw new IllegalArgumentException("invalid rating line at byte " + pos + " of a chunk of " + file);
+                }
+                cols.users.add(parseLong(buf, fieldStarts[0], fieldEnds[0]));
+                cols.items.add(parseLong(buf, fieldStarts[1], fieldEnds[1]));
+                cols.values.add(parseDouble(buf, fieldStarts[2], fieldEnds[2]));
+                // like String.split, a trailing delimiter leaves no timestamp
+                boolean stamped = nfields > 3 && fieldEnds[3] > fieldStarts[3];
+                cols.timestamps.add(stamped ? parseLong(buf, fieldStarts[3], fieldEnds[3]) : -1L);
+            }
+            pos = end + 1;
+        }
+        return cols;
+    }
+
+    private static int lineEnd(ByteBuffer buf, int pos, int limit) {
+        while (pos < limit && buf.get(pos) != '\n') {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * Parse a decimal integer with the same rules as {@link Long#parseLong(String)} on the
+     * trimmed field, including rejecting values out of range.
+     */
+    static long parseLong(ByteBuffer buf, int start, int end) {
+        while (start < end && isSpace(buf.get(start))) {
+            start++;
+        }
+        while (end > start && isSpace(buf.get(end - 1))) {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("invalid integer: \"" + text(buf, start, end) + "\"");
+        }
+        // accumulate negatively, so Long.MIN_VALUE fits
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multLimit = limit / 10;
+        long value = 0;
+        for (; i < end; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9 || value < multLimit) {
+                throw new NumberFormatException("invalid integer: \"" + text(buf, start, end) + "\"");
+            }
+            value *= 10;
+            if (value < limit + d) {
+                throw new NumberFormatException("invalid integer: \"" + text(buf, start, end) + "\"");
+            }
+            value -= d;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parse a number with the same rules as {@link Double#parseDouble(String)} on the trimmed
+     * field.
+     */
+    static double parseDouble(ByteBuffer buf, int start, int end) {
+        while (start < end && isSpace(buf.get(start))) {
+            start++;
+        }
+        while (end > start && isSpace(buf.get(end - 1))) {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        boolean anyDigits = false;
+        int digits = 0;
+        int fraction = -1;
+        for (; i < end; i++) {
+            byte b = buf.get(i);
+            if (b == '.' && fraction < 0) {
+                fraction = 0;
+            } else if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                anyDigits = true;
+                if (mantissa != 0) {
+                    digits++;
+                }
+                if (fraction >= 0) {
+                    fraction++;
+                }
+            } else {
+                break;
+            }
+        }
+        if (i < end || !anyDigits || digits > 15 || fraction >= POWERS_OF_TEN.length) {
+            // exponents, long values and anything odd (such as a lone sign or point, which it
+            // rejects) go through the JDK
+            return Double.parseDouble(text(buf, start, end));
+        }
+        double value = fraction > 0 ? mantissa / POWERS_OF_TEN[fraction] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Whether a byte is trimmed by {@link String#trim()}.
+     */
+    private static boolean isSpace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private static String text(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
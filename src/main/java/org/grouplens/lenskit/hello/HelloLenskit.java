@@ -31,17 +31,17 @@ import org.lenskit.LenskitConfiguration;
 import org.lenskit.LenskitRecommender;
 import org.lenskit.LenskitRecommenderEngine;
 import org.lenskit.api.ItemBasedItemRecommender;
-import org.lenskit.api.Result;
-import org.lenskit.api.ResultList;
 import org.lenskit.config.ConfigHelpers;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.dao.file.StaticDataSource;
 import org.lenskit.data.entities.CommonAttributes;
 import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entities;
 import org.lenskit.data.entities.Entity;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.knn.item.RelatedItemCount;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.lenskit.util.collections.LongUtils;
 import org.lenskit.LenskitRecommenderEngineLoader;
 
 import java.io.*;
@@ -49,6 +49,8 @@ import java.net.URI;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
 
 import com.google.common.base.Stopwatch;
 import java.util.Date;
@@ -71,8 +73,8 @@ public class HelloLenskit implements Runnable{
 
     public static void main(String[] args) {
         if (args.length == 0)
-            System.err.println("Proper Usage is: lenskit-hello [Train or Test] [Aptoide Config File]");
-        if(args[0].equals("Train") || args[0].equals("Test")) {
+            System.err.println("Proper Usage is: lenskit-hello [Train, Test or Serve] [Aptoide Config File]");
+        if(args[0].equals("Train") || args[0].equals("Test") || args[0].equals("Serve")) {
             HelloLenskit hello = new HelloLenskit(args[0], args[1]);
             try {
                 hello.run();
@@ -82,17 +84,17 @@ public class HelloLenskit implements Runnable{
                 System.exit(1);
             }
         }
-        else System.err.println("Please select either Train or Test");
+        else System.err.println("Please select either Train, Test or Serve");
     }
 
     private String mode;
     private Path dataFile;
     public List<Long> items;
     private static List<List<Long>> total_items = new ArrayList<List<Long>>();
-    private static List<String> out_names = new ArrayList<>();
-    public static volatile int out_names_index = 0;
+    private static List<String> query_names = new ArrayList<>();
     private List<String> config_file = new ArrayList<>();
-    private final String cvsSplitBy = ",";
+    private static final int DEFAULT_SERVE_PORT = 9090;
+    private static final long DEFAULT_CACHE_WEIGHT = 100000;
 
     public HelloLenskit(String ModeInput, String ConfigInput) {
         mode = ModeInput;
@@ -111,6 +113,8 @@ public class HelloLenskit implements Runnable{
     //  6 - Log File;
     //  7 - Number of recommendations needed per item;
     //  8 - Number of Threads for testing;
+    //  9 - Port for Serve mode (optional, defaults to 9090);
+    // 10 - Result cache size, in items held (optional, defaults to 100000; 0 disables it);
 
     public static List<String> readAptoideConfigFile(String ConfigInput){
         String line = "";
@@ -170,22 +174,25 @@ public class HelloLenskit implements Runnable{
         return config_file.get(8);
     }
 
+    private int getServePort(){
+        if (config_file.size() > 9 && !config_file.get(9).trim().isEmpty())
+            return Integer.parseInt(config_file.get(9).trim());
+        return DEFAULT_SERVE_PORT;
+    }
+
+    private long getCacheWeight(){
+        if (config_file.size() > 10 && !config_file.get(10).trim().isEmpty())
+            return Long.parseLong(config_file.get(10).trim());
+        return DEFAULT_CACHE_WEIGHT;
+    }
+
 
     public void run() {
         HeapMemoryPrinter(1);
         // We first need to configure the data access.
-        // We will load data from a static data source; you could implement your own DAO
-        // on top of a database of some kind
-        DataAccessObject dao;
-        try {
-            StaticDataSource data = StaticDataSource.load(dataFile);
-            // get the data from the DAO
-            dao = data.get();
-        } catch (IOException e) {
-            logger.error("cannot load data", e);
-            throw Throwables.propagate(e);
-        }
-
+        // Train loads data from a static data source; you could implement your own DAO
+        // on top of a database of some kind.  Test and Serve only need the app names,
+        // which they map from the dictionary written next to the model.
         // If we select Train we load the configuration file
         // and train the model, followed by writing this one into disk.
         // If we select Test we load the previously trained model together
@@ -193,9 +200,21 @@ public class HelloLenskit implements Runnable{
         // results will be written in the test ouput file.
 
         if (mode.equals("Train")) {
-            //Train doesn't need total_items nor out_names
+            DataAccessObject dao;
+            try {
+                dao = loadCachedData();
+                if (dao == null) {
+                    StaticDataSource data = StaticDataSource.load(dataFile);
+                    // get the data from the DAO
+                    dao = data.get();
+                }
+            } catch (IOException e) {
+                logger.error("cannot load data", e);
+                throw Throwables.propagate(e);
+            }
+            //Train doesn't need total_items nor query_names
             total_items = null;
-            out_names = null;
+            query_names = null;
             // Next: load the LensKit algorithm configuration
             LenskitConfiguration config;
             try {
@@ -203,6 +222,11 @@ public class HelloLenskit implements Runnable{
             } catch (IOException e) {
                 throw new RuntimeException("could not load configuration", e);
             }
+            // read rating vectors straight from the ratings cache when there is one
+            config.bind(RatingVectorPDAO.class).to(CachedRatingVectorPDAO.class);
+            // precompute related-item lists as long as the lists we will be asked for
+            // (set() returns a raw binding, so bind the qualifier with its type instead)
+            config.bind(RelatedItemCount.class, Integer.class).to(getAmountRecs());
 
             // There are more parameters, roles, and components that can be set. See the
             // JavaDoc for each recommender algorithm for more information.
@@ -226,85 +250,221 @@ public class HelloLenskit implements Runnable{
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            writeDictionary();
             HeapMemoryPrinter(2);
         }
         else if (mode.equals("Test")){
-            converter();
-            BufferedWriter bufferedWriter = null;
-            File modelFile = new File(getModelFile());
-            Stopwatch timerX;
-            LenskitRecommenderEngineLoader loader;
-            Object input;
-            LenskitRecommenderEngine engine;
+            AppDictionary dictionary = openDictionary();
+            DataAccessObject dao = dictionary.createItemDAO();
+            converter(dictionary);
+            LenskitRecommenderEngine engine = loadEngine();
+            // Finally, get the recommender and use it.
+            try (LenskitRecommender rec = engine.createRecommender(dao);
+                 Writer output = new BufferedWriter(new FileWriter(getTestOutPutFile()))) {
+                logger.info("obtained recommender from engine");
+                // we want to recommend items
+                ItemBasedItemRecommender irec = rec.getItemBasedItemRecommender();
+                if (irec == null) {
+                    logger.error("recommender has no global recommender");
+                    throw new UnsupportedOperationException("no global recommender");
+                }
+
+                Stopwatch thread_timer = Stopwatch.createStarted();
+                int n_threads = Integer.parseInt(getNumberThreads());
+                RelatedItemsCache cache = new RelatedItemsCache(irec, dictionary, null, getCacheWeight());
+                QueryPipeline pipeline = new QueryPipeline(cache, getAmountRecs(), n_threads);
+                pipeline.run(total_items, query_names, output);
+                thread_timer.stop();
+                logger.info("recommended in {} (cache {})", thread_timer, cache);
+                HeapMemoryPrinter(3);
+            } catch (IOException e) {
+                throw new RuntimeException("could not write recommendations", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while recommending", e);
+            }
+        }
+        else if (mode.equals("Serve")){
+            // Serve loads the model once and keeps answering queries
+            // over a local socket until the process is stopped.
+            // The cache owns the recommender from here on, and closes it once a
+            // RELOAD has replaced it and the queries still using it are done.
+            AppDictionary dictionary = openDictionary();
+            LenskitRecommender rec = loadEngine().createRecommender(dictionary.createItemDAO());
+            final RelatedItemsCache cache =
+                    new RelatedItemsCache(relatedItemRecommender(rec), dictionary, rec, getCacheWeight());
+            // RELOAD maps the dictionary and builds a recommender from the model
+            // file as they are now, and swaps both in at once
+            Callable<Void> reloader = new Callable<Void>() {
+                @Override
+                public Void call() {
+                    AppDictionary fresh = openDictionary();
+                    LenskitRecommender freshRec = loadEngine().createRecommender(fresh.createItemDAO());
+                    cache.swap(relatedItemRecommender(freshRec), fresh, freshRec);
+                    return null;
+                }
+            };
             try {
-                timerX = Stopwatch.createStarted();
-                loader = LenskitRecommenderEngine.newLoader();
-                input = new FileInputStream(modelFile);
-                engine = loader.load((InputStream) input);
-                logger.info("loading recommender from {}", modelFile);
-                timerX.stop();
-                logger.info("loaded recommender engine in {}", timerX);
-                /*FileWriter fw = new FileWriter(getTestOutPutFile());
-                bufferedWriter = new BufferedWriter(fw);*/
-                // Finally, get the recommender and use it.
-                try (LenskitRecommender rec = engine.createRecommender(dao)) {
-                    logger.info("obtained recommender from engine");
-                    // we want to recommend items
-                    ItemBasedItemRecommender irec = rec.getItemBasedItemRecommender();
-                    assert irec != null; // not null because we configured one
-                    if (irec == null) {
-                        logger.error("recommender has no global recommender");
-                        throw new UnsupportedOperationException("no global recommender");
-                    }
+                int n_threads = Integer.parseInt(getNumberThreads());
+                QueryPipeline pipeline = new QueryPipeline(cache, getAmountRecs(), n_threads);
+                new QueryServer(pipeline, cache, reloader, getServePort(), n_threads).serve();
+            } catch (IOException e) {
+                throw new RuntimeException("could not serve recommendations", e);
+            }
+        }
+    }
+
+    // Gets the related-item recommender to serve, closing the recommender if
+    // it has none.
+    private static ItemBasedItemRecommender relatedItemRecommender(LenskitRecommender rec) {
+        ItemBasedItemRecommender irec = rec.getItemBasedItemRecommender();
+        if (irec == null) {
+            rec.close();
+            logger.error("recommender has no global recommender");
+            throw new UnsupportedOperationException("no global recommender");
+        }
+        return irec;
+    }
 
-                    Stopwatch thread_timer = Stopwatch.createStarted();
-
-                    int n_threads = Integer.parseInt(getNumberThreads());
-                    Thread Pool[] = new Thread[n_threads];
-                    int items_by_thread = total_items.size()/n_threads;
-
-                    logger.info("Building {} Threads", n_threads);
-                    for(int i = 0; i < n_threads; i++ ){
-                        int thread_items = items_by_thread * i;
-                        if (i < n_threads -1)
-                            Pool[i] = new Thread(new MyThread(thread_items, items_by_thread, getAmountRecs(),
-                                    total_items, out_names, irec, dao, bufferedWriter, i));
-                        else {
-                            int items_by_thread_x = (total_items.size() - ((n_threads - 1) * items_by_thread));
-                            Pool[i] = new Thread(new MyThread(thread_items, items_by_thread_x, getAmountRecs(),
-                                    total_items, out_names, irec, dao, bufferedWriter, i));
-                        }
-                        Pool[i].start();
+    // Loads the data through the binary ratings cache, if the data file
+    // describes a layout the cache understands: one CSV rating source with
+    // the default columns, and CSV item sources with id and name columns.
+    // Returns null for any other layout.
+    private DataAccessObject loadCachedData() throws IOException {
+        JsonNode root = new ObjectMapper(new YAMLFactory()).readTree(dataFile.toFile());
+        Path base = dataFile.toAbsolutePath().getParent();
+        JsonNode ratings = null;
+        List<JsonNode> itemSources = new ArrayList<>();
+        Iterator<JsonNode> sources = root.elements();
+        while (sources.hasNext()) {
+            JsonNode src = sources.next();
+            if (!src.path("format").asText("csv").equals("csv"))
+                return null;
+            String type = src.path("entity_type").asText("rating");
+            if (type.equals("rating") && ratings == null && !src.has("columns")) {
+                ratings = src;
+            } else if (type.equals("item") && hasColumns(src.path("columns"), "id", "name")) {
+                itemSources.add(src);
+            } else {
+                return null;
+            }
+        }
+        if (ratings == null)
+            return null;
+
+        Stopwatch timer = Stopwatch.createStarted();
+        RatingsCache cache = RatingsCache.load(base.resolve(ratings.path("file").asText()).toFile(),
+                                               ratings.path("delimiter").asText(","),
+                                               ratings.path("header").asBoolean(false));
+        List<Entity> items = new ArrayList<>();
+        for (JsonNode src: itemSources) {
+            String sep = Pattern.quote(src.path("delimiter").asText(","));
+            File file = base.resolve(src.path("file").asText()).toFile();
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                int lineNo = 0;
+                if (src.path("header").asBoolean(false)) {
+                    br.readLine();
+                    lineNo++;
+                }
+                while ((line = br.readLine()) != null) {
+                    lineNo++;
+                    if (line.length() == 0)
+                        continue;
+                    // skip the lines AppDictionary.write skips, and nameless ones
+                    String[] str = line.split(sep);
+                    long id;
+                    try {
+                        id = str.length >= 2 && !str[1].trim().isEmpty() ? Long.parseLong(str[0].trim()) : -1;
+                    } catch (NumberFormatException e) {
+                        id = -1;
                     }
-                    logger.info("Threads Running");
-                    for (int j = 0; j < n_threads; j++) {
-                        Pool[j].join();
-                        Pool[j] = null;
+                    if (id < 0) {
+                        logger.warn("{}:{}: skipping malformed item line", file, lineNo);
+                        continue;
                     }
-                    thread_timer.stop();
-                    logger.info("recommended in {}", thread_timer);
-                    HeapMemoryPrinter(3);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    bufferedWriter.flush();
-                    bufferedWriter.close();
-                } catch (IOException e) {
-                    System.out.println("Error while flushing/closing fileWriter !!!");
-                    e.printStackTrace();
+                    items.add(Entities.newBuilder(CommonTypes.ITEM, id)
+                                      .setAttribute(CommonAttributes.NAME, str[1])
+                                      .build());
                 }
             }
         }
+        DataAccessObject dao = cache.createDAO(items);
+        timer.stop();
+        logger.info("loaded data from {} in {}", cache, timer);
+        return dao;
+    }
+
+    // whether a source's columns are exactly the given names, in order
+    private static boolean hasColumns(JsonNode columns, String... names) {
+        if (!columns.isArray() || columns.size() != names.length)
+            return false;
+        for (int i = 0; i < names.length; i++) {
+            if (!columns.get(i).isTextual() || !columns.get(i).asText().equals(names[i]))
+                return false;
+        }
+        return true;
+    }
+
+    private String getDictionaryFile(){
+        return getModelFile() + ".names";
+    }
+
+    private void writeDictionary() {
+        File file = new File(getDictionaryFile());
+        logger.info("writing app dictionary to {}", file);
+        try {
+            AppDictionary.write(new File(getAppNameFile()), file);
+        } catch (IOException e) {
+            throw new RuntimeException("could not write app dictionary", e);
+        }
+    }
+
+    private AppDictionary openDictionary() {
+        File file = new File(getDictionaryFile());
+        if (!file.exists()) {
+            // models trained before the dictionary existed
+            writeDictionary();
+        }
+        try {
+            AppDictionary dictionary = AppDictionary.open(file);
+            logger.info("mapped {} app names from {}", dictionary.size(), file);
+            return dictionary;
+        } catch (IOException e) {
+            throw new RuntimeException("could not open app dictionary", e);
+        }
+    }
+
+    // strips the quotes the Test input puts around app names
+    static String unquote(String name) {
+        if (name.length() >= 2 && name.charAt(0) == '"' && name.charAt(name.length() - 1) == '"')
+            return name.substring(1, name.length() - 1);
+        return name;
+    }
+
+    private LenskitRecommenderEngine loadEngine() {
+        File modelFile = new File(getModelFile());
+        try {
+            Stopwatch timerX = Stopwatch.createStarted();
+            LenskitRecommenderEngineLoader loader = LenskitRecommenderEngine.newLoader();
+            logger.info("loading recommender from {}", modelFile);
+            LenskitRecommenderEngine engine;
+            try (InputStream input = new FileInputStream(modelFile)) {
+                engine = loader.load(input);
+            }
+            timerX.stop();
+            logger.info("loaded recommender engine in {}", timerX);
+            return engine;
+        } catch (IOException e) {
+            throw new RuntimeException("could not load model", e);
+        }
     }
 
 
     // METHOD TO MAP THE NAMES RECEIVED IN TEST INPUT TO ID'
     // IN TIME CAN BE AVOIDED IF USING LENKSIT PROPERLY
-    public void converter() {
+    public void converter(AppDictionary dictionary) {
         List<String> names = new ArrayList<>();
-        String AppNames = getAppNameFile();
         String input_file = getTestInputFile();
         String line = "";
 
@@ -321,41 +481,18 @@ public class HelloLenskit implements Runnable{
         }
         /////////////////////////////////////
 
-        // PROCESSAR APPNAMES FILE PARA HASHMAP
-        File f = new File(AppNames);
-        Scanner input = null;
-        try {
-            input = new Scanner(f);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
-        }
-        Map<String,Integer> idCode = new HashMap<String,Integer>();
-        String text;
-        String[] str;
-        while(input.hasNextLine()) {
-            text = input.nextLine();
-            str = text.split(cvsSplitBy);
-            if (text.length() != 0) {
-                String name = "\"" + str[1] + "\"";
-                idCode.put(name, Integer.parseInt(str[0]));
-            }
-        }
-        /////////////////////////////////////
-        // PROCURAR NA HASHMAP PELOS NOMES E DEVOLVER ID E COLOCAR NA LISTA PARA RECOMENDAÇÃO
-        int k = 0;
-        int x = 0;
+        // PROCURAR NO DICIONÁRIO PELOS NOMES E DEVOLVER ID E COLOCAR NA LISTA PARA RECOMENDAÇÃO
         for (String arg: names) {
             items = new ArrayList<>(arg.length());
-            if(idCode.containsKey(arg)) {
-                items.add(Long.valueOf(idCode.get(arg)));
-                total_items.add(items);
+            long id = dictionary.findId(unquote(arg));
+            if(id >= 0) {
+                items.add(id);
             }
             else {
                 items.add(0L);
-                total_items.add(items);
-                out_names.add(arg);
             }
+            total_items.add(items);
+            query_names.add(arg);
         }
     }
 
@@ -412,83 +549,3 @@ public class HelloLenskit implements Runnable{
         }
     }
 }
-
-class MyThread extends Thread {
-
-    private final int index;
-    private final int thread_num;
-    private final int thread_index;
-    private static volatile int AmountRecs;
-    private static volatile ItemBasedItemRecommender irec;
-    private static volatile DataAccessObject dao;
-    private static volatile List<List<Long>> total_items;
-    private static volatile List<String> out_names;
-    //private BufferedWriter bufferedWriter;
-    private final Object lock_if = new Object();
-    private final Object lock_else = new Object();
-    private final Object lock_writer = new Object();
-
-    public MyThread(int Index, int Thread_num, int amountRecs,
-                    List<List<Long>> Total_items, List<String> Out_names,
-                    ItemBasedItemRecommender Irec, DataAccessObject Dao, BufferedWriter BufferedWriter, int i) {
-        index = Index;
-        thread_num = Thread_num;
-        thread_index = i;
-        AmountRecs = amountRecs;
-        total_items = Total_items;
-        out_names = Out_names;
-        irec = Irec;
-        dao = Dao;
-        //bufferedWriter= BufferedWriter;
-    }
-
-    public void run() {
-        BufferedWriter bufferedWriter = null;
-        try {
-            FileWriter fw = new FileWriter("etc/test_output" + thread_index + ".txt");
-            bufferedWriter = new BufferedWriter(fw);
-        }catch (Exception e){
-            e.printStackTrace();
-            System.exit(1);
-        }
-        for (int i = index; i < index + thread_num; i++) {
-            List<Long> used_items = total_items.get(i);
-            Entity AppData = dao.lookupEntity(CommonTypes.ITEM, used_items.get(0));
-            String AppName;
-            String to_append = "";
-            if (AppData != null) {
-                ResultList recs = irec.recommendRelatedItemsWithDetails(LongUtils.packedSet(used_items), AmountRecs, null, null);
-                synchronized (lock_if) {
-                    AppName = AppData.maybeGet(CommonAttributes.NAME);
-                    to_append = to_append + "\"" + AppName + "\"" + ",";
-                    int k = 0;
-                    for (Result item : recs) {
-                        k++;
-                        Entity itemData = dao.lookupEntity(CommonTypes.ITEM, item.getId());
-                        String name = null;
-                        if (itemData != null) {
-                            name = itemData.maybeGet(CommonAttributes.NAME);
-                        }
-                        to_append = to_append + "(\"" + name + "\"" + "," + String.valueOf(item.getScore()) + ")";
-                        if (k < AmountRecs)
-                            to_append = to_append + ",";
-                    }
-                    to_append = to_append + "\n";
-                }
-            }
-            else {
-                synchronized (lock_else) {
-                    to_append = to_append + out_names.get(HelloLenskit.out_names_index) + "\n";
-                    HelloLenskit.out_names_index++;
-                }
-            }
-            try {
-                synchronized (lock_writer) {
-                    bufferedWriter.write(to_append);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-    }
-}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs a batch of related-item queries and writes the results in input order.
+ *
+ * The pipeline has two stages: a coordinator thread cuts the queries into large windows and
+ * recommends for each window at once, scoring its misses on a pool of workers, and the calling
+ * thread writes each window's output as soon as it is done.  Recommending for a whole window
+ * lets the cache answer repeated queries once and the scorer share work between baskets with
+ * common apps, and since the coordinator is not one of the workers it can wait for them without
+ * tying one up.  At most a fixed number of formatted windows wait for the writer, so the output
+ * held in memory stays bounded.  The queries themselves are loaded by the caller before the
+ * pipeline starts.
+ */
+public class QueryPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(QueryPipeline.class);
+    static final int WINDOW_SIZE = 8192;
+    private static final int PENDING_WINDOWS = 2;
+    private static final long POLL_MILLIS = 100;
+
+    private final RelatedItemsCache recommendations;
+    private final int amountRecs;
+    private final int nthreads;
+
+    /**
+     * Create a query pipeline.  Apps are named with the dictionary of the recommender the
+     * cache holds when a query starts.
+     *
+     * @param recommendations The recommendations.
+     * @param amountRecs      The number of recommendations for each query.
+     * @param nthreads        The number of scoring workers.
+     */
+    public QueryPipeline(RelatedItemsCache recommendations, int amountRecs, int nthreads) {
+        this.recommendations = recommendations;
+        this.amountRecs = amountRecs;
+        this.nthreads = nthreads;
+    }
+
+    /**
+     * Run the queries.
+     *
+     * @param queries The query baskets, one per output line.
+     * @param names   The input name of each query, written as-is for items we do not know.
+     * @param out     The output.
+     */
+    public void run(final List<List<Long>> queries, final List<String> names, Writer out)
+            throws IOException, InterruptedException {
+        final int nwindows = (queries.size() + WINDOW_SIZE - 1) / WINDOW_SIZE;
+        final BlockingQueue<String> pending = new ArrayBlockingQueue<>(PENDING_WINDOWS);
+        final ExecutorService workers = Executors.newFixedThreadPool(nthreads);
+        ExecutorService coordinator = Executors.newSingleThreadExecutor();
+        logger.info("running {} queries in {} windows on {} threads", queries.size(), nwindows, nthreads);
+        try {
+            Future<Void> recommending = coordinator.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    for (int w = 0; w < nwindows; w++) {
+                        int start = w * WINDOW_SIZE;
+                        int end = Math.min(start + WINDOW_SIZE, queries.size());
+                        String text;
+                        try {
+                            text = formatBatch(queries.subList(start, end), names.subList(start, end), workers);
+                        } catch (RuntimeException e) {
+                            throw new RuntimeException("query window " + w + " failed", e);
+                        }
+                        pending.put(text);
+                    }
+                    return null;
+                }
+            });
+
+            for (int w = 0; w < nwindows; w++) {
+                String window = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                while (window == null) {
+                    if (recommending.isDone()) {
+                        // surfaces a failed coordinator; a finished one has already queued every window
+                        try {
+                            recommending.get();
+                        } catch (ExecutionException e) {
+                            throw new RuntimeException("query coordinator failed", e.getCause());
+                        }
+                    }
+                    window = pending.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                out.write(window);
+            }
+            out.flush();
+        } finally {
+            coordinator.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Recommend for a batch of queries and format their output lines.  The queries whose first
+     * app we know are recommended for together, so repeated baskets are computed once and
+     * baskets sharing apps share the work.
+     *
+     * @param batch    The query baskets.
+     * @param names    The input name of each query.
+     * @param executor The executor to score on, or {@code null} to score in the calling thread.
+     *                 The calling thread waits for it, so it must not be one of its threads.
+     * @return The output lines, in input order.
+     */
+    String formatBatch(List<List<Long>> batch, List<String> names, ExecutorService executor) {
+        RelatedItemsCache.State model = recommendations.acquire();
+        try {
+            AppDictionary dictionary = model.dictionary;
+            List<List<Long>> known = new ArrayList<>(batch.size());
+            for (List<Long> basket: batch) {
+                if (dictionary.getName(basket.get(0)) != null) {
+                    known.add(basket);
+                }
+            }
+            Iterator<ResultList> recs = recommendations.recommendAll(model, known, amountRecs, executor).iterator();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) {
+                String appName = dictionary.getName(batch.get(i).get(0));
+                if (appName == null) {
+                    sb.append(names.get(i)).append('\n');
+                } else {
+                    formatLine(dictionary, appName, recs.next(), sb);
+                }
+            }
+            return sb.toString();
+        } finally {
+            recommendations.release(model);
+        }
+    }
+
+    /**
+     * Recommend for one query and append its output line.
+     *
+     * @param model  The pinned state whose recommender and dictionary to use.
+     * @param basket The query basket.
+     * @param name   The input name of the query.
+     * @param sb     The output buffer.
+     */
+    void formatQuery(RelatedItemsCache.State model, List<Long> basket, String name, StringBuilder sb) {
+        String appName = model.dictionary.getName(basket.get(0));
+        if (appName == null) {
+            sb.append(name).append('\n');
+            return;
+        }
+        formatLine(model.dictionary, appName, recommendations.recommend(model, basket, amountRecs), sb);
+    }
+
+    /**
+     * Append the output line for a query we know.
+     *
+     * @param dictionary The dictionary to name the recommended apps with.
+     * @param appName The name of the query's first app.
+     * @param recs    The recommendations.
+     * @param sb      The output buffer.
+     */
+    private void formatLine(AppDictionary dictionary, String appName, ResultList recs, StringBuilder sb) {
+        sb.append('"').append(appName).append('"').append(',');
+        int k = 0;
+        for (Result item : recs) {
+            k++;
+            String itemName = dictionary.getName(item.getId());
+            sb.append("(\"").append(itemName).append('"').append(',').append(item.getScore()).append(')');
+            if (k < amountRecs) {
+                sb.append(',');
+            }
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Answers related-item queries over a local TCP socket, keeping the recommender warm between
+ * requests.
+ *
+ * The protocol is line based.  Each request is one line of comma-separated app names, quoted
+ * as in the Test input file (e.g. {@code "com.app1","com.app2"}), so a quoted name may itself
+ * contain commas; the response is one line in
+ * the Test output format, recommending for the basket of all the named apps.  A request whose
+ * apps are all unknown gets its first name back on its own, like in Test mode.  An empty line
+ * or {@code QUIT} closes the connection.
+ *
+ * Two commands manage the server: {@code STATS} answers with the result cache counters, and
+ * {@code RELOAD} loads the model and app dictionary again (e.g. after a new Train run) and swaps
+ * them in, answering {@code OK} or {@code ERROR} and a message.  Queries already running finish
+ * with the old model, which is closed once they are done.
+ *
+ * Every connection gets its own thread, so idle clients never keep others (or the management
+ * commands) waiting; only the scoring of queries is limited to a fixed pool of workers.
+ */
+public class QueryServer {
+    private static final Logger logger = LoggerFactory.getLogger(QueryServer.class);
+
+    private final QueryPipeline queries;
+    private final RelatedItemsCache cache;
+    private final Callable<Void> reloader;
+    private final int port;
+    private final int nthreads;
+
+    /**
+     * Create a query server.
+     *
+     * @param queries  The pipeline whose formatting to answer queries with.
+     * @param cache    The result cache the pipeline recommends through.
+     * @param reloader Loads a fresh recommender and dictionary and swaps them into the cache,
+     *                 for {@code RELOAD}.
+     * @param port     The port to listen on (on the loopback interface).
+     * @param nthreads The number of queries to score at once.
+     */
+    public QueryServer(QueryPipeline queries, RelatedItemsCache cache,
+                       Callable<Void> reloader, int port, int nthreads) {
+        this.queries = queries;
+        this.cache = cache;
+        this.reloader = reloader;
+        this.port = port;
+        this.nthreads = nthreads;
+    }
+
+    /**
+     * Serve queries until the process is stopped.
+     */
+    public void serve() throws IOException {
+        ExecutorService connections = Executors.newCachedThreadPool();
+        final ExecutorService workers = Executors.newFixedThreadPool(nthreads);
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            logger.info("serving related-item queries on {}", server.getLocalSocketAddress());
+            while (true) {
+                final Socket client = server.accept();
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(client, workers);
+                    }
+                });
+            }
+        } finally {
+            connections.shutdownNow();
+            workers.shutdownNow();
+        }
+    }
+
+    private void handle(Socket client, ExecutorService workers) {
+        try (Socket socket = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.equals("QUIT")) {
+                    break;
+                }
+                sb.setLength(0);
+                if (line.equals("STATS")) {
+                    sb.append(cache).append('\n');
+                } else if (line.equals("RELOAD")) {
+                    reload(sb);
+                } else {
+                    sb.append(score(line, workers));
+                }
+                out.write(sb.toString());
+                out.flush();
+            }
+        } catch (SocketException e) {
+            logger.debug("connection closed: {}", e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            logger.warn("error serving query", e);
+        }
+    }
+
+    /**
+     * Load a new recommender and swap it in, dropping the cached results of the old one.
+     * Queries keep being answered by the old recommender while the new one loads.
+     */
+    private void reload(StringBuilder sb) {
+        try {
+            reloader.call();
+            logger.info("swapped in reloaded model");
+            sb.append("OK\n");
+        } catch (Exception e) {
+            logger.error("cannot reload model", e);
+            sb.append("ERROR ").append(e.getMessage()).append('\n');
+        }
+    }
+
+    /**
+     * Answer one request line on the scoring workers.
+     *
+     * @param request The request line.
+     * @param workers The scoring workers.
+     * @return The response line.
+     */
+    private String score(final String request, ExecutorService workers) {
+        try {
+            return workers.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    StringBuilder sb = new StringBuilder();
+                    answer(request, sb);
+                    return sb.toString();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while answering query", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("cannot answer query", e.getCause());
+        }
+    }
+
+    /**
+     * Answer one request line.
+     *
+     * @param request The request line.
+     * @param sb      The buffer to append the response line to.
+     */
+    void answer(String request, StringBuilder sb) {
+        // the names must resolve in the dictionary of the model that answers them
+        RelatedItemsCache.State model = cache.acquire();
+        try {
+            List<String> names = splitNames(request);
+            List<Long> basket = new ArrayList<>(names.size());
+            for (String name: names) {
+                long id = model.dictionary.findId(HelloLenskit.unquote(name));
+                if (id >= 0) {
+                    basket.add(id);
+                }
+            }
+            if (basket.isEmpty()) {
+                basket.add(0L);
+            }
+            queries.formatQuery(model, basket, names.get(0), sb);
+        } finally {
+            cache.release(model);
+        }
+    }
+
+    /**
+     * Split a request line into its app names.  Commas inside double quotes belong to the name,
+     * so a quoted name may contain them; an unterminated quote runs to the end of the line.  The
+     * names are trimmed but keep their quotes, for {@link HelloLenskit#unquote(String)}.
+     *
+     * @param request The request line.
+     * @return The names, in request order; never empty.
+     */
+    static List<String> splitNames(String request) {
+        List<String> names = new ArrayList<>();
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < request.length(); i++) {
+            char c = request.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                names.add(request.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        names.add(request.substring(start).trim());
+        return names;
+    }
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.AbstractLongIterator;
+import it.unimi.dsi.fastutil.longs.AbstractLongSet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.lenskit.data.dao.EntityCollectionDAO;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingBuilder;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
+
+/**
+ * Binary, memory-mapped cache of a ratings CSV file.
+ *
+ * The cache stores the ratings grouped by user in columns: the sorted user and item IDs, the
+ * start of each user's ratings (which encodes the user column), and the dense item index,
+ * value and timestamp of every rating.  Within a user, ratings are ordered by item and then
+ * by timestamp.  The header records the size and modification time of the source file, and
+ * the cache is rebuilt whenever they change.
+ */
+public class RatingsCache {
+    private static final Logger logger = LoggerFactory.getLogger(RatingsCache.class);
+    private static final int MAGIC = 0x4c4b5243;  // "LKRC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final File file;
+    private final SortedKeyIndex users;
+    private final SortedKeyIndex items;
+    private final long[] userOffsets;
+    private final ByteBuffer[] itemColumn;
+    private final ByteBuffer[] valueColumn;
+    private final ByteBuffer[] timestampColumn;
+
+    private RatingsCache(File file, SortedKeyIndex users, SortedKeyIndex items, long[] offsets,
+                         ByteBuffer[] itemCol, ByteBuffer[] valueCol, ByteBuffer[] tsCol) {
+        this.file = file;
+        this.users = users;
+        this.items = items;
+        userOffsets = offsets;
+        itemColumn = itemCol;
+        valueColumn = valueCol;
+        timestampColumn = tsCol;
+    }
+
+    /**
+     * Open the cache of a ratings file, building it first if it is missing or stale.
+     *
+     * @param source    The ratings CSV file (user, item, rating and optional timestamp).
+     * @param delimiter The field delimiter.
+     * @param header    Whether the file has a header line to skip.
+     * @return The cache.
+     */
+    public static RatingsCache load(File source, String delimiter, boolean header) throws IOException {
+        File cache = new File(source.getPath() + ".cache");
+        if (!isFresh(cache, source)) {
+            logger.info("building ratings cache {} from {}", cache, source);
+            Stopwatch timer = Stopwatch.createStarted();
+            RatingColumns ratings;
+            if (delimiter.length() == 1 && delimiter.charAt(0) < 128) {
+                int nthreads = Runtime.getRuntime().availableProcessors();
+                ratings = new ChunkedRatingParser(source, (byte) delimiter.charAt(0), header, nthreads).parse();
+            } else {
+                ratings = RatingColumns.parse(source, delimiter, header);
+            }
+            timer.stop();
+            logger.info("parsed {} ratings in {}", ratings.size(), timer);
+            write(ratings, source, cache);
+        }
+        RatingsCache rc = open(cache);
+        logger.info("mapped {} ratings by {} users from {}", rc.size(), rc.users.size(), cache);
+        return rc;
+    }
+
+    private static boolean isFresh(File cache, File source) throws IOException {
+        if (!cache.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(cache))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION
+                    && in.readLong() == source.length()
+                    && in.readLong() == source.lastModified();
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Write a cache file.
+     *
+     * @param ratings The parsed ratings.
+     * @param source  The source file, whose size and time are recorded.
+     * @param cache   The cache file.
+     */
+    static void write(RatingColumns ratings, File source, File cache) throws IOException {
+        final int n = ratings.size();
+        long[] userIds = ratings.users.elements();
+        long[] itemIds = ratings.items.elements();
+        SortedKeyIndex users = distinct(userIds, n);
+        SortedKeyIndex items = distinct(itemIds, n);
+
+        // order by user, then item, then timestamp, then file position (all sorts are stable)
+        int[] perm = new int[n];
+        for (int i = 0; i < n; i++) {
+            perm[i] = i;
+        }
+        long[] keys = new long[n];
+        int[] itemIdx = new int[n];
+        for (int i = 0; i < n; i++) {
+            int u = users.getIndex(userIds[i]);
+            itemIdx[i] = items.getIndex(itemIds[i]);
+            keys[i] = ((long) u << 32) | itemIdx[i];
+        }
+        LongArrays.radixSortIndirect(perm, ratings.timestamps.elements(), 0, n, true);
+        LongArrays.radixSortIndirect(perm, keys, 0, n, true);
+
+        long[] offsets = new long[users.size() + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[(int) (keys[i] >>> 32) + 1] += 1;
+        }
+        for (int u = 0; u < users.size(); u++) {
+            offsets[u + 1] += offsets[u];
+        }
+
+        File tmp = new File(cache.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(users.size());
+            out.writeInt(items.size());
+            out.writeLong(n);
+            out.writeLong(0);
+            for (int u = 0; u < users.size(); u++) {
+                out.writeLong(users.getKey(u));
+            }
+            for (int i = 0; i < items.size(); i++) {
+                out.writeLong(items.getKey(i));
+            }
+            for (long off: offsets) {
+                out.writeLong(off);
+            }
+            for (int k = 0; k < n; k++) {
+                out.writeInt(itemIdx[perm[k]]);
+            }
+            if (n % 2 != 0) {
+                out.writeInt(0);
+            }
+            double[] values = ratings.values.elements();
+            for (int k = 0; k < n; k++) {
+                out.writeDouble(values[perm[k]]);
+            }
+            long[] timestamps = ratings.timestamps.elements();
+            for (int k = 0; k < n; k++) {
+                out.writeLong(timestamps[perm[k]]);
+            }
+        }
+        if (!tmp.renameTo(cache)) {
+            throw new IOException("cannot move " + tmp + " to " + cache);
+        }
+    }
+
+    private static SortedKeyIndex distinct(long[] ids, int n) {
+        long[] keys = new long[n];
+        System.arraycopy(ids, 0, keys, 0, n);
+        LongArrays.radixSort(keys);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || keys[i] != keys[m - 1]) {
+                keys[m++] = keys[i];
+            }
+        }
+        return SortedKeyIndex.wrap(keys, m);
+    }
+
+    /**
+     * Map a cache file.
+     *
+     * @param cache The cache file.
+     * @return The cache.
+     */
+    static RatingsCache open(File cache) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(cache, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(cache + " is not a ratings cache");
+            }
+            int nusers = header.getInt(24);
+            int nitems = header.getInt(28);
+            long n = header.getLong(32);
+
+            long pos = HEADER_SIZE;
+            long[] userIds = readLongs(channel, pos, nusers);
+            pos += nusers * 8L;
+            long[] itemIds = readLongs(channel, pos, nitems);
+            pos += nitems * 8L;
+            long[] offsets = readLongs(channel, pos, nusers + 1);
+            pos += (nusers + 1) * 8L;
+            ByteBuffer[] itemCol = mapColumn(channel, pos, n, 4);
+            pos += ((n + 1) / 2) * 8;
+            ByteBuffer[] valueCol = mapColumn(channel, pos, n, 8);
+            pos += n * 8;
+            ByteBuffer[] tsCol = mapColumn(channel, pos, n, 8);
+
+            return new RatingsCache(cache, SortedKeyIndex.wrap(userIds, nusers), SortedKeyIndex.wrap(itemIds, nitems),
+                                    offsets, itemCol, valueCol, tsCol);
+        }
+    }
+
+    private static long[] readLongs(FileChannel channel, long pos, int n) throws IOException {
+        long[] values = new long[n];
+        if (n > 0) {
+            channel.map(FileChannel.MapMode.READ_ONLY, pos, n * 8L).asLongBuffer().get(values);
+        }
+        return values;
+    }
+
+    private static ByteBuffer[] mapColumn(FileChannel channel, long start, long count, int width) throws IOException {
+        int nsegs = (int) ((count + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        ByteBuffer[] segs = new ByteBuffer[nsegs];
+        for (int s = 0; s < nsegs; s++) {
+            long first = (long) s << SEGMENT_SHIFT;
+            long len = Math.min(count - first, 1L << SEGMENT_SHIFT);
+            segs[s] = channel.map(FileChannel.MapMode.READ_ONLY, start + first * width, len * width);
+        }
+        return segs;
+    }
+
+    /**
+     * Get the number of ratings in the cache.
+     */
+    public long size() {
+        return userOffsets[users.size()];
+    }
+
+    private int itemAt(long k) {
+        return itemColumn[(int) (k >>> SEGMENT_SHIFT)].getInt(((int) k & SEGMENT_MASK) << 2);
+    }
+
+    private double valueAt(long k) {
+        return valueColumn[(int) (k >>> SEGMENT_SHIFT)].getDouble(((int) k & SEGMENT_MASK) << 3);
+    }
+
+    private long timestampAt(long k) {
+        return timestampColumn[(int) (k >>> SEGMENT_SHIFT)].getLong(((int) k & SEGMENT_MASK) << 3);
+    }
+
+    /**
+     * Get a user's rating vector.  If the user rated an item more than once, the latest rating
+     * is used.
+     *
+     * @param user The user ID.
+     * @return The user's ratings, empty if the user is unknown.
+     */
+    public Long2DoubleMap userRatingVector(long user) {
+        int u = users.tryGetIndex(user);
+        if (u < 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        return ratingVector(u);
+    }
+
+    private Long2DoubleMap ratingVector(int u) {
+        long start = userOffsets[u];
+        long end = userOffsets[u + 1];
+        int n = 0;
+        for (long k = start; k < end; k++) {
+            if (k + 1 == end || itemAt(k + 1) != itemAt(k)) {
+                n++;
+            }
+        }
+        long[] keys = new long[n];
+        double[] values = new double[n];
+        int i = 0;
+        for (long k = start; k < end; k++) {
+            int item = itemAt(k);
+            // duplicates are ordered by time, so the last one wins
+            if (k + 1 == end || itemAt(k + 1) != item) {
+                keys[i] = items.getKey(item);
+                values[i] = valueAt(k);
+                i++;
+            }
+        }
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(keys, n), values);
+    }
+
+    /**
+     * Stream the rating vectors of all users, in user ID order.
+     *
+     * @return A stream of rating vectors.
+     */
+    public ObjectStream<IdBox<Long2DoubleMap>> streamUsers() {
+        return ObjectStreams.wrap(new Iterator<IdBox<Long2DoubleMap>>() {
+            int u = 0;
+
+            @Override
+            public boolean hasNext() {
+                return u < users.size();
+            }
+
+            @Override
+            public IdBox<Long2DoubleMap> next() {
+                if (u >= users.size()) {
+                    throw new NoSuchElementException();
+                }
+                IdBox<Long2DoubleMap> box = IdBox.create(users.getKey(u), ratingVector(u));
+                u++;
+                return box;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    /**
+     * Get the IDs of the users with cached ratings.
+     */
+    public LongSortedSet getUserIds() {
+        return users.keySet();
+    }
+
+    /**
+     * Get the IDs of the items with cached ratings.
+     */
+    public LongSortedSet getItemIds() {
+        return items.keySet();
+    }
+
+    /**
+     * Get the IDs of the cached ratings.  Ratings are numbered from 1 in user, item and time
+     * order, so the IDs are the range from 1 to {@link #size()}.
+     */
+    public LongSet getRatingIds() {
+        return new AbstractLongSet() {
+            @Override
+            public boolean contains(long id) {
+                return id >= 1 && id <= size();
+            }
+
+            @Override
+            public int size() {
+                return (int) Math.min(RatingsCache.this.size(), Integer.MAX_VALUE);
+            }
+
+            @Override
+            public LongIterator iterator() {
+                return new AbstractLongIterator() {
+                    long next = 1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next <= RatingsCache.this.size();
+                    }
+
+                    @Override
+                    public long nextLong() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return next++;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Look up a rating by ID.
+     *
+     * @param id The rating ID.
+     * @return The rating, or {@code null} if there is no such rating.
+     */
+    public Rating lookupRating(long id) {
+        if (id < 1 || id > size()) {
+            return null;
+        }
+        long k = id - 1;
+        // find the user whose rows hold position k
+        int lo = 0;
+        int hi = users.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (userOffsets[mid] <= k) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return rating(Rating.newBuilder(), lo, k);
+    }
+
+    /**
+     * Stream the cached ratings, in user, item and time order.  Rating entities are only
+     * created for the rows that pass the user and item filters.
+     *
+     * @param user The user to stream the ratings of, or {@code null} for all users.
+     * @param item The item to stream the ratings of, or {@code null} for all items.
+     * @return The ratings.
+     */
+    public ObjectStream<Entity> streamRatings(Long user, Long item) {
+        final int firstUser;
+        final int lastUser;
+        if (user == null) {
+            firstUser = 0;
+            lastUser = users.size();
+        } else {
+            firstUser = users.tryGetIndex(user);
+            lastUser = firstUser + 1;
+        }
+        final int itemIndex = item == null ? -1 : items.tryGetIndex(item);
+        if (firstUser < 0 || (item != null && itemIndex < 0)) {
+            return ObjectStreams.empty();
+        }
+        return ObjectStreams.wrap(new Iterator<Entity>() {
+            final RatingBuilder rb = Rating.newBuilder();
+            int u = firstUser;
+            long k = userOffsets[firstUser] - 1;
+
+            {
+                advance();
+            }
+
+            private void advance() {
+                k++;
+                while (u < lastUser) {
+                    if (k >= userOffsets[u + 1]) {
+                        u++;
+                    } else if (itemIndex >= 0 && itemAt(k) != itemIndex) {
+                        k++;
+                    } else {
+                        return;
+                    }
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return u < lastUser;
+            }
+
+            @Override
+            public Entity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Rating r = rating(rb, u, k);
+                advance();
+                return r;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+    }
+
+    private Rating rating(RatingBuilder rb, int u, long k) {
+        return rb.setId(k + 1)
+                 .setUserId(users.getKey(u))
+                 .setItemId(items.getKey(itemAt(k)))
+                 .setRating(valueAt(k))
+                 .setTimestamp(timestampAt(k))
+                 .build();
+    }
+
+    /**
+     * Create a data access object serving the cached ratings, and the users and items they
+     * mention, from the mapped columns, together with the given other entities.
+     *
+     * @param entities The other entities (e.g. the items).
+     * @return A DAO that also exposes this cache.
+     */
+    public CachedDataAccessObject createDAO(List<Entity> entities) {
+        return new CachedDataAccessObject(EntityCollectionDAO.create(entities), this);
+    }
+
+    @Override
+    public String toString() {
+        return "ratings cache " + file;
+    }
+
+    /**
+     * Ratings parsed from a CSV file, in file order.
+     */
+    static class RatingColumns {
+        final LongArrayList users = new LongArrayList();
+        final LongArrayList items = new LongArrayList();
+        final DoubleArrayList values = new DoubleArrayList();
+        final LongArrayList timestamps = new LongArrayList();
+
+        int size() {
+            return users.size();
+        }
+
+        static RatingColumns parse(File source, String delimiter, boolean header) throws IOException {
+            RatingColumns cols = new RatingColumns();
+            String sep = Pattern.quote(delimiter);
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+                String line;
+                if (header) {
+                    br.readLine();
+                }
+                while ((line = br.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    String[] fields = line.split(sep);
+                    if (fields.length < 3) {
+                        throw new IllegalArgumentException("invalid rating line: " + line);
+                    }
+                    cols.users.add(Long.parseLong(fields[0].trim()));
+                    cols.items.add(Long.parseLong(fields[1].trim()));
+                    cols.values.add(Double.parseDouble(fields[2].trim()));
+                    cols.timestamps.add(fields.length > 3 ? Long.parseLong(fields[3].trim()) : -1L);
+                }
+            }
+            return cols;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.lenskit.api.ItemBasedItemRecommender;
+import org.lenskit.api.Recommender;
+import org.lenskit.api.ResultList;
+import org.lenskit.knn.item.RelatedItemsItemBasedItemRecommender;
+import org.lenskit.util.collections.LongUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of related-item recommendations, in front of an
+ * {@link ItemBasedItemRecommender}.
+ *
+ * Entries are keyed by the sorted, de-duplicated basket and the number of recommendations,
+ * and each one weighs the number of item IDs it holds (basket plus results); the cache keeps
+ * the total weight under a bound.  Eviction follows W-TinyLFU: new entries go to a small LRU
+ * window, entries leaving the window compete for a place in the main segmented LRU against its
+ * oldest probationary entry, and the one a count-min sketch of recent query frequencies rates
+ * lower is evicted.  One-off queries therefore pass through the window without pushing popular
+ * apps out of the cache.
+ *
+ * The entries belong to the recommender that computed them, and the item IDs in them to the
+ * app dictionary the recommender was built with.  {@link #swap} installs a new recommender and
+ * dictionary together with an empty cache in a single write, so no query sees a result from the
+ * old model once the swap has returned.  Queries pin the state they start with (see
+ * {@link #acquire()}), so a query running across a swap keeps using the old recommender and
+ * dictionary, and the old recommender is closed once the last such query has finished.
+ */
+public class RelatedItemsCache {
+    private static final Logger logger = LoggerFactory.getLogger(RelatedItemsCache.class);
+
+    private final long maxWeight;
+    private volatile State state;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a cache.
+     *
+     * @param irec       The recommender to answer misses with.
+     * @param dictionary The app dictionary {@code irec} was built with.
+     * @param owner      The recommender {@code irec} belongs to, closed once it has been swapped
+     *                   out and no query uses it any more; {@code null} if the caller closes it.
+     * @param maxWeight  The maximum total weight of the cached entries; 0 disables caching.
+     */
+    public RelatedItemsCache(ItemBasedItemRecommender irec, AppDictionary dictionary,
+                             Recommender owner, long maxWeight) {
+        this.maxWeight = maxWeight;
+        state = new State(irec, dictionary, owner, maxWeight);
+    }
+
+    /**
+     * Pin the current state, keeping its recommender open until the state is
+     * {@linkplain #release(State) released}, even if it is swapped out meanwhile.
+     *
+     * @return The current state.
+     */
+    State acquire() {
+        while (true) {
+            State s = state;
+            // a state whose last reference is gone has already been replaced; read again
+            if (s.retain()) {
+                return s;
+            }
+        }
+    }
+
+    /**
+     * Release a state pinned with {@link #acquire()}.
+     *
+     * @param s The state.
+     */
+    void release(State s) {
+        s.release();
+    }
+
+    /**
+     * Recommend items related to a basket, from the cache if possible.
+     *
+     * @param basket The basket.
+     * @param n      The number of recommendations.
+     * @return The recommendations, as {@link ItemBasedItemRecommender#recommendRelatedItemsWithDetails}
+     *         returns them.  The list is shared and must not be modified.
+     */
+    public ResultList recommend(Collection<Long> basket, int n) {
+        State s = acquire();
+        try {
+            return recommend(s, basket, n);
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * Recommend items related to a basket with a pinned state.
+     *
+     * @see #recommend(Collection, int)
+     */
+    ResultList recommend(State s, Collection<Long> basket, int n) {
+        if (maxWeight <= 0) {
+            misses.incrementAndGet();
+            return s.irec.recommendRelatedItemsWithDetails(LongUtils.packedSet(basket), n, null, null);
+        }
+        Key key = new Key(basket, n);
+        ResultList cached = s.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        // compute outside the lock; concurrent misses on one key may both compute it
+        ResultList recs = s.irec.recommendRelatedItemsWithDetails(LongUtils.packedSet(basket), n, null, null);
+        evictions.addAndGet(s.put(key, recs, key.items.length + recs.size()));
+        return recs;
+    }
+
+    /**
+     * Recommend items related to each of many baskets.  Cached baskets are answered from the
+     * cache; the rest are computed together with
+     * {@link RelatedItemsItemBasedItemRecommender#recommendRelatedItemsWithDetails(List, int, ExecutorService)}
+     * when the recommender supports it, one at a time otherwise, and then cached.  A basket that
+     * misses more than once is computed once, and its repeats count as hits.
+     *
+     * @param baskets  The baskets.
+     * @param n        The number of recommendations for each basket.
+     * @param executor The executor to compute misses on, or {@code null} to compute them in the
+     *                 calling thread.
+     * @return The recommendations for each basket, in the order of {@code baskets}.  The lists
+     *         are shared and must not be modified.
+     */
+    public List<ResultList> recommendAll(List<? extends Collection<Long>> baskets, int n, ExecutorService executor) {
+        State s = acquire();
+        try {
+            return recommendAll(s, baskets, n, executor);
+        } finally {
+            s.release();
+        }
+    }
+
+    /**
+     * Recommend items related to each of many baskets with a pinned state.
+     *
+     * @see #recommendAll(List, int, ExecutorService)
+     */
+    List<ResultList> recommendAll(State s, List<? extends Collection<Long>> baskets, int n, ExecutorService executor) {
+        ResultList[] results = new ResultList[baskets.size()];
+        // the distinct missing baskets, and for each basket its position among them (-1 if cached)
+        Map<Key, Integer> missSlots = new HashMap<>();
+        List<Key> missKeys = new ArrayList<>();
+        List<Set<Long>> missBaskets = new ArrayList<>();
+        int[] missOf = new int[results.length];
+        for (int i = 0; i < results.length; i++) {
+            Collection<Long> basket = baskets.get(i);
+            Key key = new Key(basket, n);
+            if (maxWeight > 0) {
+                results[i] = s.get(key);
+            }
+            missOf[i] = -1;
+            if (results[i] == null) {
+                Integer slot = missSlots.get(key);
+                if (slot == null) {
+                    slot = missKeys.size();
+                    missSlots.put(key, slot);
+                    missKeys.add(key);
+                    missBaskets.add(LongUtils.packedSet(basket));
+                }
+                missOf[i] = slot;
+            }
+        }
+        hits.addAndGet(results.length - missKeys.size());
+        misses.addAndGet(missKeys.size());
+        if (missKeys.isEmpty()) {
+            return Arrays.asList(results);
+        }
+
+        List<ResultList> computed;
+        if (s.irec instanceof RelatedItemsItemBasedItemRecommender) {
+            computed = ((RelatedItemsItemBasedItemRecommender) s.irec)
+                    .recommendRelatedItemsWithDetails(missBaskets, n, executor);
+        } else {
+            computed = new ArrayList<>(missBaskets.size());
+            for (Set<Long> basket: missBaskets) {
+                computed.add(s.irec.recommendRelatedItemsWithDetails(basket, n, null, null));
+            }
+        }
+        if (maxWeight > 0) {
+            for (int j = 0; j < computed.size(); j++) {
+                Key key = missKeys.get(j);
+                evictions.addAndGet(s.put(key, computed.get(j), key.items.length + computed.get(j).size()));
+            }
+        }
+        for (int i = 0; i < results.length; i++) {
+            if (missOf[i] >= 0) {
+                results[i] = computed.get(missOf[i]);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Replace the recommender and dictionary and drop every cached entry.  The old recommender's
+     * owner is closed once no query uses it any more.
+     *
+     * @param irec       The new recommender.
+     * @param dictionary The app dictionary {@code irec} was built with.
+     * @param owner      The recommender {@code irec} belongs to, or {@code null}.
+     */
+    public void swap(ItemBasedItemRecommender irec, AppDictionary dictionary, Recommender owner) {
+        State old;
+        synchronized (this) {
+            old = state;
+            state = new State(irec, dictionary, owner, maxWeight);
+        }
+        old.release();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of entries currently cached.
+     */
+    public int size() {
+        State s = state;
+        synchronized (s) {
+            return s.entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d evictions=%d size=%d",
+                             getHitCount(), getMissCount(), getEvictionCount(), size());
+    }
+
+    /**
+     * Canonical query: the sorted distinct basket items and the number of recommendations.
+     */
+    static final class Key {
+        final long[] items;
+        final int n;
+        private final int hash;
+
+        Key(Collection<Long> basket, int n) {
+            long[] ids = new long[basket.size()];
+            int k = 0;
+            for (long id: basket) {
+                ids[k++] = id;
+            }
+            LongArrays.quickSort(ids);
+            int len = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (len == 0 || ids[i] != ids[len - 1]) {
+                    ids[len++] = ids[i];
+                }
+            }
+            items = len == ids.length ? ids : Arrays.copyOf(ids, len);
+            this.n = n;
+            hash = 31 * Arrays.hashCode(items) + n;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return n == other.n && hash == other.hash && Arrays.equals(items, other.items);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node {
+        final Key key;
+        final ResultList value;
+        final int weight;
+        int queue;
+        boolean candidate;
+        Node prev;
+        Node next;
+
+        Node(Key key, ResultList value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly-linked LRU list; the head is the least recently used entry.
+     */
+    private static final class Queue {
+        final Node sentinel = new Node(null, null, 0);
+        long weight;
+
+        Queue() {
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+
+        Node first() {
+            return sentinel.next == sentinel ? null : sentinel.next;
+        }
+
+        Node last() {
+            return sentinel.prev == sentinel ? null : sentinel.prev;
+        }
+
+        void add(Node node) {
+            node.prev = sentinel.prev;
+            node.next = sentinel;
+            sentinel.prev.next = node;
+            sentinel.prev = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+    }
+
+    /**
+     * A recommender, its dictionary and the entries cached for it.  Access to the entries is
+     * synchronized on the state.
+     *
+     * The state counts its references: one for the cache while it is current, and one for each
+     * query that has pinned it.  Dropping the last one closes the owning recommender.
+     */
+    static final class State {
+        final ItemBasedItemRecommender irec;
+        final AppDictionary dictionary;
+        private final Recommender owner;
+        private final AtomicInteger refs = new AtomicInteger(1);
+        final Map<Key, Node> entries = new HashMap<>();
+        final Queue window = new Queue();
+        final Queue probation = new Queue();
+        final Queue protect = new Queue();
+        final FrequencySketch sketch;
+        final long maxWeight;
+        final long maxWindow;
+        final long maxProtected;
+
+        State(ItemBasedItemRecommender irec, AppDictionary dictionary, Recommender owner, long maxWeight) {
+            this.irec = irec;
+            this.dictionary = dictionary;
+            this.owner = owner;
+            this.maxWeight = maxWeight;
+            maxWindow = Math.max(1, maxWeight / 100);
+            maxProtected = (maxWeight - maxWindow) * 4 / 5;
+            // entries weigh about ten items each; the sketch needs a counter set per entry
+            sketch = new FrequencySketch((int) Math.min(Math.max(maxWeight / 8, 16), 1 << 20));
+        }
+
+        /**
+         * Take a reference, unless the last one has already been dropped.
+         *
+         * @return {@code true} if the state is still open.
+         */
+        boolean retain() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Drop a reference, closing the owning recommender with the last one.
+         */
+        void release() {
+            if (refs.decrementAndGet() == 0 && owner != null) {
+                owner.close();
+                logger.info("closed swapped-out recommender");
+            }
+        }
+
+        /**
+         * Check whether the state still has references.
+         */
+        boolean isOpen() {
+            return refs.get() > 0;
+        }
+
+        synchronized ResultList get(Key key) {
+            sketch.increment(key.hashCode());
+            Node node = entries.get(key);
+            if (node == null) {
+                return null;
+            }
+            switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                window.add(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protect.add(node);
+                // demote the oldest protected entries to make room
+                while (protect.weight > maxProtected) {
+                    Node demoted = protect.first();
+                    protect.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+            default:
+                protect.remove(node);
+                protect.add(node);
+            }
+            return node.value;
+        }
+
+        /**
+         * Add an entry and evict to stay within the weight bound.
+         *
+         * @return The number of entries evicted.
+         */
+        synchronized int put(Key key, ResultList value, int weight) {
+            if (weight > maxWeight || entries.containsKey(key)) {
+                return 0;
+            }
+            Node node = new Node(key, value, weight);
+            node.queue = WINDOW;
+            entries.put(key, node);
+            window.add(node);
+
+            // entries leaving the window become admission candidates in probation
+            while (window.weight > maxWindow) {
+                Node moved = window.first();
+                window.remove(moved);
+                moved.queue = PROBATION;
+                moved.candidate = true;
+                probation.add(moved);
+            }
+
+            int evicted = 0;
+            while (window.weight + probation.weight + protect.weight > maxWeight) {
+                Node victim = probation.first();
+                if (victim == null) {
+                    victim = protect.first() != null ? protect.first() : window.first();
+                } else {
+                    Node candidate = probation.last();
+                    if (candidate != victim && candidate.candidate
+                            && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                        victim = candidate;
+                    }
+                }
+                evict(victim);
+                evicted++;
+            }
+            for (Node n = probation.last(); n != null && n.candidate; n = n.prev == probation.sentinel ? null : n.prev) {
+                n.candidate = false;
+            }
+            return evicted;
+        }
+
+        private void evict(Node node) {
+            switch (node.queue) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            default:
+                protect.remove(node);
+            }
+            entries.remove(node.key);
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, halved periodically so that the
+     * frequencies reflect recent traffic.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity, 4) - 1) << 1;
+            table = new long[size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & mask;
+        }
+
+        int frequency(int hash) {
+            int freq = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int shift = ((hash >>> (i << 3)) & 15) << 2;
+                int count = (int) ((table[index(hash, i)] >>> shift) & 15);
+                freq = Math.min(freq, count);
+            }
+            return freq;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int idx = index(hash, i);
+                int shift = ((hash >>> (i << 3)) & 15) << 2;
+                if (((table[idx] >>> shift) & 15) != 15) {
+                    table[idx] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+            }
+            additions /= 2;
+        }
+    }
+}
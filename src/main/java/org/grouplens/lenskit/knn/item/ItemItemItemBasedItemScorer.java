@@ -20,79 +20,355 @@
  */
 package org.lenskit.knn.item;
 
+import com.google.common.base.Throwables;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.longs.*;
-import org.lenskit.util.ScoredIdAccumulator;
-import org.lenskit.util.TopNScoredIdAccumulator;
-import org.lenskit.util.UnlimitedScoredIdAccumulator;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemBasedItemScorer;
 import org.lenskit.knn.NeighborhoodSize;
 import org.lenskit.knn.item.model.ItemItemModel;
+import org.lenskit.knn.item.model.QuantizedSimilarityModel;
+import org.lenskit.knn.item.model.ScoreSortedNeighbors;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Score items based on the basket of items using an item-item CF model.
  *
+ * <p>Neighborhoods are built in a per-thread {@link NeighborhoodBuffer}, so scoring allocates
+ * nothing per candidate item.  {@link #scoreRelatedItems(LongSet, LongSet, Long2DoubleMap)}
+ * also avoids boxing the basket, the candidates and the results.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class ItemItemItemBasedItemScorer extends AbstractItemBasedItemScorer {
+    /**
+     * Number of distinct baskets scored together by the batch entry point.
+     */
+    public static final int BATCH_GROUP_SIZE = 64;
+
     protected final ItemItemModel model;
     @Nonnull
     protected final
     NeighborhoodScorer scorer;
     private final int neighborhoodSize;
+    private final boolean reverse;
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch(neighborhoodSize);
+        }
+    };
 
     @Inject
-    public ItemItemItemBasedItemScorer(ItemItemModel m, @NeighborhoodSize int nnbrs) {
+    public ItemItemItemBasedItemScorer(ItemItemModel m, @NeighborhoodSize int nnbrs,
+                                       @ReverseNeighborhoodScoring boolean rev) {
         model = m;
         // The global item scorer use the SimilaritySumNeighborhoodScorer for the unary ratings
         this.scorer = new SimilaritySumNeighborhoodScorer();
         neighborhoodSize = nnbrs;
+        reverse = rev;
     }
 
     @Nonnull
     @Override
     public Map<Long, Double> scoreRelatedItems(@Nonnull Collection<Long> basket, @Nonnull Collection<Long> items) {
         Long2DoubleMap results = new Long2DoubleOpenHashMap();
-        ItemItemScoreAccumulator accum = ItemItemScoreAccumulator.basic(results);
-
-        scoreItems(basket, items, accum);
-
+        scoreRelatedItems(LongUtils.packedSet(basket), itemSet(items), results);
         return results;
     }
 
+    /**
+     * Score items related to a basket into a map.
+     *
+     * @param basket   The basket of reference items.
+     * @param items    The items to score.
+     * @param receiver The map to receive the scores of the items that can be scored.  It should
+     *                 be empty; callers can clear and reuse one map across queries.
+     */
+    public void scoreRelatedItems(@Nonnull LongSet basket, @Nonnull LongSet items, @Nonnull Long2DoubleMap receiver) {
+        scoreItems(basket, items, ItemItemScoreAccumulator.basic(receiver));
+    }
+
     @Override
     public ResultMap scoreRelatedItemsWithDetails(@Nonnull Collection<Long> basket, Collection<Long> items) {
         List<ItemItemResult> results = new ArrayList<>();
         ItemItemScoreAccumulator accum = ItemItemScoreAccumulator.detailed(results);
 
-        scoreItems(basket, items, accum);
+        scoreItems(LongUtils.packedSet(basket), itemSet(items), accum);
 
         return Results.newResultMap(results);
     }
 
+    /**
+     * Score the items related to each of many baskets.  The result for each basket is the same
+     * as {@code scoreRelatedItemsWithDetails(basket, items - basket)}, except that the neighborhood
+     * scorer is not consulted for items with no neighbors in the basket.
+     *
+     * <p>Baskets are sorted so that baskets sharing items are adjacent, identical baskets are
+     * scored once, and the baskets are cut into groups of {@link #BATCH_GROUP_SIZE}.  Each group
+     * is scored in one sweep: every candidate's row is read once and its neighbors are matched
+     * against all the group's baskets at the same time, instead of once per basket.  Groups run
+     * as separate tasks on the executor, if there is one.</p>
+     *
+     * @param baskets  The baskets.
+     * @param items    The candidate items.
+     * @param executor The executor to score groups on, or {@code null} to score them in the
+     *                 calling thread.
+     * @return The results for each basket, in the order of {@code baskets}.
+     */
+    public List<ResultMap> scoreRelatedItemsWithDetails(@Nonnull List<? extends Collection<Long>> baskets,
+                                                        @Nonnull Collection<Long> items,
+                                                        ExecutorService executor) {
+        final int nbaskets = baskets.size();
+        final long[][] keys = new long[nbaskets][];
+        for (int i = 0; i < nbaskets; i++) {
+            keys[i] = LongUtils.packedSet(baskets.get(i)).toLongArray();
+        }
+        final int[] order = new int[nbaskets];
+        for (int i = 0; i < nbaskets; i++) {
+            order[i] = i;
+        }
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                long[] x = keys[a];
+                long[] y = keys[b];
+                for (int k = 0; k < x.length && k < y.length; k++) {
+                    if (x[k] != y[k]) {
+                        return Long.compare(x[k], y[k]);
+                    }
+                }
+                return Integer.compare(x.length, y.length);
+            }
+        });
+
+        // distinct baskets, in sorted order; each original basket points at its distinct one
+        final List<LongSet> distinct = new ArrayList<>();
+        final int[] distinctOf = new int[nbaskets];
+        for (int i = 0; i < nbaskets; i++) {
+            int b = order[i];
+            if (i == 0 || !Arrays.equals(keys[b], keys[order[i - 1]])) {
+                distinct.add(LongUtils.packedSet(baskets.get(b)));
+            }
+            distinctOf[b] = distinct.size() - 1;
+        }
+
+        final LongSet candidates = itemSet(items);
+        final ResultMap[] results = new ResultMap[distinct.size()];
+        if (executor == null) {
+            for (int start = 0; start < distinct.size(); start += BATCH_GROUP_SIZE) {
+                int end = Math.min(start + BATCH_GROUP_SIZE, distinct.size());
+                scoreGroup(distinct.subList(start, end), candidates, results, start);
+            }
+        } else {
+            List<Callable<Void>> groups = new ArrayList<>();
+            for (int start = 0; start < distinct.size(); start += BATCH_GROUP_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + BATCH_GROUP_SIZE, distinct.size());
+                groups.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        scoreGroup(distinct.subList(from, to), candidates, results, from);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for (Future<Void> f: executor.invokeAll(groups)) {
+                    f.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while scoring baskets", e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        List<ResultMap> byBasket = new ArrayList<>(nbaskets);
+        for (int i = 0; i < nbaskets; i++) {
+            byBasket.add(results[distinctOf[i]]);
+        }
+        return byBasket;
+    }
+
+    /**
+     * Score a group of distinct baskets.
+     *
+     * @param group      The baskets.
+     * @param candidates The candidate items.
+     * @param results    The array to store each basket's results in.
+     * @param offset     The position of the group's first basket in {@code results}.
+     */
+    private void scoreGroup(List<LongSet> group, LongSet candidates, ResultMap[] results, int offset) {
+        int n = group.size();
+        List<List<ItemItemResult>> lists = new ArrayList<>(n);
+        ItemItemScoreAccumulator[] accums = new ItemItemScoreAccumulator[n];
+        Long2DoubleMap[] basketScores = new Long2DoubleMap[n];
+        for (int b = 0; b < n; b++) {
+            List<ItemItemResult> list = new ArrayList<>();
+            lists.add(list);
+            accums[b] = ItemItemScoreAccumulator.detailed(list);
+            basketScores[b] = LongUtils.constantDoubleMap(group.get(b), 1.0);
+        }
+
+        if (reverse) {
+            for (int b = 0; b < n; b++) {
+                LongSet basket = group.get(b);
+                scoreReachableItems(basketScores[b], LongUtils.setDifference(candidates, basket), accums[b]);
+            }
+        } else {
+            sweep(group, candidates, basketScores, accums);
+        }
+
+        for (int b = 0; b < n; b++) {
+            results[offset + b] = Results.newResultMap(lists.get(b));
+        }
+    }
+
+    /**
+     * Score every candidate against a group of baskets, reading each candidate's row once.
+     */
+    private void sweep(List<LongSet> group, LongSet candidates, Long2DoubleMap[] basketScores,
+                       ItemItemScoreAccumulator[] accums) {
+        int n = group.size();
+        // the baskets each item belongs to, as chained lists
+        Long2IntOpenHashMap heads = new Long2IntOpenHashMap();
+        heads.defaultReturnValue(-1);
+        IntArrayList memberBaskets = new IntArrayList();
+        IntArrayList memberNext = new IntArrayList();
+        for (int b = 0; b < n; b++) {
+            LongIterator iter = group.get(b).iterator();
+            while (iter.hasNext()) {
+                long item = iter.nextLong();
+                memberBaskets.add(b);
+                memberNext.add(heads.get(item));
+                heads.put(item, memberBaskets.size() - 1);
+            }
+        }
+        int[] members = memberBaskets.elements();
+        int[] next = memberNext.elements();
+
+        NeighborhoodBuffer[] neighborhoods = new NeighborhoodBuffer[n];
+        for (int b = 0; b < n; b++) {
+            neighborhoods[b] = new NeighborhoodBuffer(neighborhoodSize);
+        }
+        boolean[] touched = new boolean[n];
+        int[] touchedList = new int[n];
+        QuantizedSimilarityModel.Cursor cursor = new QuantizedSimilarityModel.Cursor();
+
+        LongIterator iter = candidates.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            Long2DoubleMap row = model.getNeighbors(item);
+            int ntouched = 0;
+            if (row instanceof ScoreSortedNeighbors) {
+                ScoreSortedNeighbors sorted = (ScoreSortedNeighbors) row;
+                for (int r = 0, len = sorted.size(); r < len; r++) {
+                    long nbr = sorted.getNeighbor(r);
+                    for (int m = heads.get(nbr); m >= 0; m = next[m]) {
+                        int b = members[m];
+                        if (!touched[b]) {
+                            if (group.get(b).contains(item)) {
+                                continue;
+                            }
+                            touched[b] = true;
+                            touchedList[ntouched++] = b;
+                            neighborhoods[b].clear();
+                        }
+                        // rows are sorted by similarity, so the first matches are the neighborhood
+                        if (!neighborhoods[b].isFull()) {
+                            neighborhoods[b].append(nbr, sorted.getScore(r));
+                        }
+                    }
+                }
+            } else if (row instanceof QuantizedSimilarityModel.Row) {
+                cursor.reset((QuantizedSimilarityModel.Row) row);
+                while (cursor.next()) {
+                    long nbr = cursor.getNeighbor();
+                    for (int m = heads.get(nbr); m >= 0; m = next[m]) {
+                        int b = members[m];
+                        if (!touched[b]) {
+                            if (group.get(b).contains(item)) {
+                                continue;
+                            }
+                            touched[b] = true;
+                            touchedList[ntouched++] = b;
+                            neighborhoods[b].clear();
+                        }
+                        neighborhoods[b].offer(nbr, cursor.getScore());
+                    }
+                }
+            } else {
+                for (Long2DoubleMap.Entry e: row.long2DoubleEntrySet()) {
+                    for (int m = heads.get(e.getLongKey()); m >= 0; m = next[m]) {
+                        int b = members[m];
+                        if (!touched[b]) {
+                            if (group.get(b).contains(item)) {
+                                continue;
+                            }
+                            touched[b] = true;
+                            touchedList[ntouched++] = b;
+                            neighborhoods[b].clear();
+                        }
+                        neighborhoods[b].offer(e.getLongKey(), e.getDoubleValue());
+                    }
+                }
+            }
+            for (int t = 0; t < ntouched; t++) {
+                int b = touchedList[t];
+                touched[b] = false;
+                scorer.score(item, neighborhoods[b], basketScores[b], accums[b]);
+            }
+        }
+    }
+
+    /**
+     * View or copy a collection of items as a primitive set.
+     */
+    static LongSet itemSet(Collection<Long> items) {
+        if (items instanceof Set) {
+            return LongUtils.asLongSet((Set<Long>) items);
+        } else {
+            return new LongOpenHashSet(items);
+        }
+    }
+
     /**
      * Score items into an accumulator.
      * @param basket The basket of reference items.
-     * @param items The item scores.
+     * @param items The items to score.
      * @param accum The accumulator.
      */
-    private void scoreItems(@Nonnull Collection<Long> basket, Collection<Long> items, ItemItemScoreAccumulator accum) {
-        LongSet bset = LongUtils.packedSet(basket);
-        Long2DoubleMap basketScores = LongUtils.constantDoubleMap(bset, 1.0);
+    private void scoreItems(@Nonnull LongSet basket, LongSet items, ItemItemScoreAccumulator accum) {
+        Long2DoubleMap basketScores = LongUtils.constantDoubleMap(basket, 1.0);
 
-        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        if (reverse) {
+            scoreReachableItems(basketScores, items, accum);
+            return;
+        }
+
+        NeighborhoodBuffer neighborhood = scratch.get().neighborhood;
+        LongIterator iter = items.iterator();
         while (iter.hasNext()) {
             long item = iter.nextLong();
-            scoreItem(basketScores, item, accum);
+            scoreItem(basketScores, item, neighborhood, accum);
         }
     }
 
@@ -103,22 +379,121 @@ public class ItemItemItemBasedItemScorer extends AbstractItemBasedItemScorer {
      * @param accum The accumulator.
      */
     protected void scoreItem(Long2DoubleMap scores, long item, ItemItemScoreAccumulator accum) {
-        Long2DoubleMap allNeighbors = model.getNeighbors(item);
-        ScoredIdAccumulator acc;
-        if (neighborhoodSize > 0) {
-            // FIXME Abstract accumulator selection logic
-            acc = new TopNScoredIdAccumulator(neighborhoodSize);
-        } else {
-            acc = new UnlimitedScoredIdAccumulator();
+        scoreItem(scores, item, scratch.get().neighborhood, accum);
+    }
+
+    private void scoreItem(Long2DoubleMap scores, long item, NeighborhoodBuffer neighborhood,
+                           ItemItemScoreAccumulator accum) {
+        neighborhood.fill(model.getNeighbors(item), scores);
+        scorer.score(item, neighborhood, scores, accum);
+    }
+
+    /**
+     * Score the items reachable from the basket into an accumulator.  Rather than scanning each
+     * candidate's neighborhood for basket items, this walks the rows of the basket items and
+     * collects, for each candidate they reach, the basket items it is similar to.  The cost is
+     * proportional to the basket's row lengths instead of the number of candidates.
+     *
+     * @param scores The reference scores.
+     * @param candidates The items to score.
+     * @param accum The accumulator.
+     */
+    protected void scoreReachableItems(Long2DoubleMap scores, LongSet candidates, ItemItemScoreAccumulator accum) {
+        Scratch s = scratch.get();
+        s.clearEdges();
+        LongIterator refs = scores.keySet().iterator();
+        while (refs.hasNext()) {
+            long refItem = refs.nextLong();
+            Long2DoubleMap row = model.getNeighbors(refItem);
+            if (row instanceof ScoreSortedNeighbors) {
+                ScoreSortedNeighbors sorted = (ScoreSortedNeighbors) row;
+                for (int r = 0, n = sorted.size(); r < n; r++) {
+                    long item = sorted.getNeighbor(r);
+                    if (candidates.contains(item)) {
+                        s.addEdge(item, refItem, sorted.getScore(r));
+                    }
+                }
+            } else if (row instanceof QuantizedSimilarityModel.Row) {
+                QuantizedSimilarityModel.Cursor cur = s.neighborhood.quantizedCursor();
+                cur.reset((QuantizedSimilarityModel.Row) row);
+                while (cur.next()) {
+                    long item = cur.getNeighbor();
+                    if (candidates.contains(item)) {
+                        s.addEdge(item, refItem, cur.getScore());
+                    }
+                }
+            } else {
+                for (Long2DoubleMap.Entry nbr: row.long2DoubleEntrySet()) {
+                    if (candidates.contains(nbr.getLongKey())) {
+                        s.addEdge(nbr.getLongKey(), refItem, nbr.getDoubleValue());
+                    }
+                }
+            }
         }
 
-        for (Long2DoubleMap.Entry nbr: allNeighbors.long2DoubleEntrySet()) {
-            if (scores.containsKey(nbr.getLongKey())) {
-                acc.put(nbr.getLongKey(), nbr.getDoubleValue());
+        NeighborhoodBuffer neighborhood = s.neighborhood;
+        for (int g = 0; g < s.ngroups; g++) {
+            neighborhood.clear();
+            for (int e = s.groupHeads[g]; e >= 0; e = s.nextEdges[e]) {
+                neighborhood.offer(s.refs[e], s.sims[e]);
             }
+            scorer.score(s.groupItems[g], neighborhood, scores, accum);
         }
+    }
 
-        Long2DoubleMap neighborhood = acc.finishMap();
-        scorer.score(item, neighborhood, scores, accum);
+    /**
+     * Per-thread scoring state: the neighborhood buffer, and the (basket item, similarity)
+     * edges collected by reverse scoring, chained in lists grouped by candidate item.
+     */
+    private static class Scratch {
+        final NeighborhoodBuffer neighborhood;
+        final Long2IntOpenHashMap groups = new Long2IntOpenHashMap();
+        long[] groupItems = new long[64];
+        int[] groupHeads = new int[64];
+        int[] groupTails = new int[64];
+        int ngroups;
+        long[] refs = new long[64];
+        double[] sims = new double[64];
+        int[] nextEdges = new int[64];
+        int nedges;
+
+        Scratch(int nnbrs) {
+            neighborhood = new NeighborhoodBuffer(nnbrs);
+            groups.defaultReturnValue(-1);
+        }
+
+        void clearEdges() {
+            groups.clear();
+            ngroups = 0;
+            nedges = 0;
+        }
+
+        void addEdge(long item, long ref, double sim) {
+            if (nedges == refs.length) {
+                refs = Arrays.copyOf(refs, nedges * 2);
+                sims = Arrays.copyOf(sims, nedges * 2);
+                nextEdges = Arrays.copyOf(nextEdges, nedges * 2);
+            }
+            int e = nedges++;
+            refs[e] = ref;
+            sims[e] = sim;
+            nextEdges[e] = -1;
+
+            int g = groups.get(item);
+            if (g < 0) {
+                if (ngroups == groupItems.length) {
+                    groupItems = Arrays.copyOf(groupItems, ngroups * 2);
+                    groupHeads = Arrays.copyOf(groupHeads, ngroups * 2);
+                    groupTails = Arrays.copyOf(groupTails, ngroups * 2);
+                }
+                g = ngroups++;
+                groups.put(item, g);
+                groupItems[g] = item;
+                groupHeads[g] = e;
+            } else {
+                nextEdges[groupTails[g]] = e;
+            }
+            groupTails[g] = e;
+        }
     }
 }
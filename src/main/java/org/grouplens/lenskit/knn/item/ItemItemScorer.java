@@ -23,13 +23,10 @@ package org.lenskit.knn.item;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
-import it.unimi.dsi.fastutil.longs.LongIterators;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.grouplens.lenskit.symbols.Symbol;
 import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
 import org.grouplens.lenskit.transform.normalize.VectorTransformation;
-import org.lenskit.util.ScoredIdAccumulator;
-import org.lenskit.util.TopNScoredIdAccumulator;
-import org.lenskit.util.UnlimitedScoredIdAccumulator;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
@@ -67,6 +64,12 @@ public class ItemItemScorer extends AbstractItemScorer {
     protected final NeighborhoodScorer scorer;
     private final int neighborhoodSize;
     private final int minNeighbors;
+    private final ThreadLocal<NeighborhoodBuffer> neighborhoods = new ThreadLocal<NeighborhoodBuffer>() {
+        @Override
+        protected NeighborhoodBuffer initialValue() {
+            return new NeighborhoodBuffer(neighborhoodSize);
+        }
+    };
 
     /**
      * Construct a new item-item scorer.
@@ -102,13 +105,22 @@ public class ItemItemScorer extends AbstractItemScorer {
     public Map<Long, Double> score(long user, @Nonnull Collection<Long> items) {
         logger.debug("scoring {} items for user {}", items.size(), user);
         Long2DoubleMap results = new Long2DoubleOpenHashMap(items.size());
-        ItemItemScoreAccumulator accum = ItemItemScoreAccumulator.basic(results);
-
-        scoreItems(user, items, accum);
-
+        score(user, ItemItemItemBasedItemScorer.itemSet(items), results);
         return results;
     }
 
+    /**
+     * Score items for a user into a map.
+     *
+     * @param user     The user.
+     * @param items    The items to score.
+     * @param receiver The map to receive the scores of the items that can be scored.  It should
+     *                 be empty; callers can clear and reuse one map across queries.
+     */
+    public void score(long user, @Nonnull LongSet items, @Nonnull Long2DoubleMap receiver) {
+        scoreItems(user, items, ItemItemScoreAccumulator.basic(receiver));
+    }
+
     /**
      * Score items by computing predicted ratings.
      */
@@ -119,7 +131,7 @@ public class ItemItemScorer extends AbstractItemScorer {
         List<ItemItemResult> results = new ArrayList<>(items.size());
         ItemItemScoreAccumulator accum = ItemItemScoreAccumulator.detailed(results);
 
-        scoreItems(user, items, accum);
+        scoreItems(user, ItemItemItemBasedItemScorer.itemSet(items), accum);
 
         return Results.newResultMap(results);
     }
@@ -130,7 +142,7 @@ public class ItemItemScorer extends AbstractItemScorer {
      * @param items The items to score.
      * @param accum The accumulator.
      */
-    private void scoreItems(long user, @Nonnull Collection<Long> items, ItemItemScoreAccumulator accum) {
+    private void scoreItems(long user, @Nonnull LongSet items, ItemItemScoreAccumulator accum) {
         Long2DoubleMap ratings = rvDAO.userRatingVector(user);
 
         SparseVector summary = ImmutableSparseVector.create(ratings);
@@ -140,38 +152,32 @@ public class ItemItemScorer extends AbstractItemScorer {
         transform.apply(normed);
         Long2DoubleMap itemScores = normed.asMap();
 
-        LongIterator iter = LongIterators.asLongIterator(items.iterator());
+        NeighborhoodBuffer neighborhood = neighborhoods.get();
+        LongIterator iter = items.iterator();
         while (iter.hasNext()) {
             final long item = iter.nextLong();
-            scoreItem(itemScores, item, accum);
+            scoreItem(itemScores, item, neighborhood, accum);
         }
 
         accum.applyReversedTransform(transform);
     }
 
     protected void scoreItem(Long2DoubleMap userData, long item, ItemItemScoreAccumulator accum) {
-        Long2DoubleMap allNeighbors = model.getNeighbors(item);
-        ScoredIdAccumulator acc;
-        if (neighborhoodSize > 0) {
-            // FIXME Abstract accumulator selection logic
-            acc = new TopNScoredIdAccumulator(neighborhoodSize);
-        } else {
-            acc = new UnlimitedScoredIdAccumulator();
-        }
-
-        for (Long2DoubleMap.Entry nbr: allNeighbors.long2DoubleEntrySet()) {
-            if (userData.containsKey(nbr.getLongKey())) {
-                acc.put(nbr.getLongKey(), nbr.getDoubleValue());
-            }
-        }
+        scoreItem(userData, item, neighborhoods.get(), accum);
+    }
 
-        Long2DoubleMap neighborhood = acc.finishMap();
+    private void scoreItem(Long2DoubleMap userData, long item, NeighborhoodBuffer neighborhood,
+                           ItemItemScoreAccumulator accum) {
+        Long2DoubleMap allNeighbors = model.getNeighbors(item);
+        neighborhood.fill(allNeighbors, userData);
         assert neighborhoodSize <= 0 || neighborhood.size() <= neighborhoodSize;
         if (neighborhood.size() < minNeighbors) {
             return;
         }
-        logger.trace("scoring item {} with {} of {} neighbors",
-                     item, neighborhood.size(), allNeighbors.size());
+        if (logger.isTraceEnabled()) {
+            logger.trace("scoring item {} with {} of {} neighbors",
+                         item, neighborhood.size(), allNeighbors.size());
+        }
         scorer.score(item, neighborhood, userData, accum);
         // logger.trace("computed score {}", score);
     }
@@ -0,0 +1,270 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item;
+
+import it.unimi.dsi.fastutil.longs.AbstractLong2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.objects.AbstractObjectIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObjectSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.lenskit.knn.item.model.QuantizedSimilarityModel;
+import org.lenskit.knn.item.model.ScoreSortedNeighbors;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Reusable neighborhood for the item-item scorers.  The scorers keep one buffer per thread and
+ * refill it for each item they score, so building a neighborhood allocates nothing once the
+ * buffer has grown to the neighborhood size.
+ *
+ * <p>The buffer is a read-only {@link Long2DoubleMap} from neighbor to similarity, so any
+ * {@link NeighborhoodScorer} can consume it; the built-in scorers use {@link #sum()},
+ * {@link #sumAbs()} and {@link #dotProduct(Long2DoubleMap)} to avoid iterators.  Its contents
+ * are only valid for the duration of the {@link NeighborhoodScorer#score} call.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class NeighborhoodBuffer extends AbstractLong2DoubleMap {
+    private static final long serialVersionUID = 1L;
+
+    private final int limit;
+    private long[] ids;
+    private double[] sims;
+    private int size;
+    private QuantizedSimilarityModel.Cursor cursor;
+
+    /**
+     * Create a neighborhood buffer.
+     *
+     * @param limit The neighborhood size; if positive, {@link #offer(long, double)} keeps only
+     *              the {@code limit} most similar neighbors.
+     */
+    NeighborhoodBuffer(int limit) {
+        this.limit = limit;
+        int cap = limit > 0 ? limit : 16;
+        ids = new long[cap];
+        sims = new double[cap];
+    }
+
+    /**
+     * Remove all neighbors.
+     */
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Query whether the buffer holds as many neighbors as its limit.
+     *
+     * @return {@code true} if the buffer is limited and full.
+     */
+    boolean isFull() {
+        return limit > 0 && size >= limit;
+    }
+
+    /**
+     * Append a neighbor without checking the limit.  Used when neighbors arrive in decreasing
+     * order of similarity; the caller stops when the buffer {@linkplain #isFull() is full}.
+     */
+    void append(long id, double sim) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            sims = Arrays.copyOf(sims, size * 2);
+        }
+        ids[size] = id;
+        sims[size] = sim;
+        size++;
+    }
+
+    /**
+     * Offer a neighbor.  If the buffer is limited, it keeps the most similar neighbors offered
+     * so far, sorted by decreasing similarity; earlier neighbors win ties.
+     */
+    void offer(long id, double sim) {
+        if (limit <= 0) {
+            append(id, sim);
+            return;
+        }
+        int pos = size;
+        if (size == limit) {
+            if (sim <= sims[size - 1]) {
+                return;
+            }
+            pos = size - 1;
+        } else {
+            size++;
+        }
+        while (pos > 0 && sims[pos - 1] < sim) {
+            ids[pos] = ids[pos - 1];
+            sims[pos] = sims[pos - 1];
+            pos--;
+        }
+        ids[pos] = id;
+        sims[pos] = sim;
+    }
+
+    /**
+     * Get a cursor for walking quantized rows, reused across calls.
+     */
+    QuantizedSimilarityModel.Cursor quantizedCursor() {
+        if (cursor == null) {
+            cursor = new QuantizedSimilarityModel.Cursor();
+        }
+        return cursor;
+    }
+
+    /**
+     * Refill the buffer with the neighbors from a row that appear in a reference set.  Rows
+     * sorted by score are scanned only until the buffer is full, and quantized rows are decoded
+     * with a reused cursor.
+     *
+     * @param row       The item's neighbor row.
+     * @param reference The reference items (e.g. a user's ratings or a basket).
+     */
+    void fill(Long2DoubleMap row, Long2DoubleMap reference) {
+        size = 0;
+        if (row instanceof ScoreSortedNeighbors) {
+            ScoreSortedNeighbors sorted = (ScoreSortedNeighbors) row;
+            for (int r = 0, n = sorted.size(); r < n && !isFull(); r++) {
+                long id = sorted.getNeighbor(r);
+                if (reference.containsKey(id)) {
+                    append(id, sorted.getScore(r));
+                }
+            }
+        } else if (row instanceof QuantizedSimilarityModel.Row) {
+            QuantizedSimilarityModel.Cursor cur = quantizedCursor();
+            cur.reset((QuantizedSimilarityModel.Row) row);
+            while (cur.next()) {
+                long id = cur.getNeighbor();
+                if (reference.containsKey(id)) {
+                    offer(id, cur.getScore());
+                }
+            }
+        } else {
+            for (Long2DoubleMap.Entry nbr: row.long2DoubleEntrySet()) {
+                if (reference.containsKey(nbr.getLongKey())) {
+                    offer(nbr.getLongKey(), nbr.getDoubleValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the sum of the neighbor similarities.
+     *
+     * @return The total similarity.
+     */
+    public double sum() {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += sims[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Get the sum of the absolute neighbor similarities.
+     *
+     * @return The total absolute similarity.
+     */
+    public double sumAbs() {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += Math.abs(sims[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Compute the dot product of the similarities with a score vector.
+     *
+     * @param scores The scores; neighbors without a score contribute nothing.
+     * @return The similarity-weighted sum of the scores.
+     */
+    public double dotProduct(Long2DoubleMap scores) {
+        double dot = 0;
+        for (int i = 0; i < size; i++) {
+            if (scores.containsKey(ids[i])) {
+                dot += sims[i] * scores.get(ids[i]);
+            }
+        }
+        return dot;
+    }
+
+    private int find(long key) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public double get(long key) {
+        int i = find(key);
+        return i < 0 ? defaultReturnValue() : sims[i];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public ObjectSet<Entry> long2DoubleEntrySet() {
+        return new AbstractObjectSet<Entry>() {
+            @Override
+            public ObjectIterator<Entry> iterator() {
+                return new AbstractObjectIterator<Entry>() {
+                    int pos = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return pos < size;
+                    }
+
+                    @Override
+                    public Entry next() {
+                        if (pos >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = pos++;
+                        return new BasicEntry(ids[i], sims[i]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -32,6 +32,9 @@ import org.grouplens.grapht.annotation.DefaultImplementation;
  * scores are available, and truncated to the neighborhood size, so all functions
  * implementing this interface need to do is accumulate scores.
  *
+ * <p>The item-item scorers pass a {@link NeighborhoodBuffer} that they reuse for the next item,
+ * so implementations must not keep a reference to the neighborhood after returning.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 @DefaultImplementation(WeightedAverageNeighborhoodScorer.class)
@@ -0,0 +1,114 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item;
+
+import org.lenskit.api.ItemBasedItemScorer;
+import org.lenskit.api.ResultList;
+import org.lenskit.api.ResultMap;
+import org.lenskit.basic.TopNItemBasedItemRecommender;
+import org.lenskit.data.dao.ItemDAO;
+import org.lenskit.knn.item.model.RelatedItemsTable;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Item-based item recommender that answers single-item queries from a precomputed
+ * {@link RelatedItemsTable}.  A query is served from the table when its basket has exactly one
+ * item, it uses the default candidates and exclusions, and it asks for no more items than the
+ * table holds; any other query goes through the scorer as usual.
+ *
+ * <p>The table assumes the scorer is an {@link ItemItemItemBasedItemScorer} over the same
+ * model.  Results served from the table carry only IDs and scores, not neighborhood
+ * details.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class RelatedItemsItemBasedItemRecommender extends TopNItemBasedItemRecommender {
+    private final RelatedItemsTable table;
+
+    @Inject
+    public RelatedItemsItemBasedItemRecommender(ItemDAO idao, ItemBasedItemScorer scorer,
+                                                RelatedItemsTable table) {
+        super(idao, scorer);
+        this.table = table;
+    }
+
+    @Override
+    public ResultList recommendRelatedItemsWithDetails(Set<Long> basket, int n, Set<Long> candidates, Set<Long> exclude) {
+        if (basket.size() == 1 && candidates == null && exclude == null
+                && n > 0 && n <= table.getListLength()) {
+            ResultList results = table.getRelatedItems(basket.iterator().next(), n);
+            if (results != null) {
+                return results;
+            }
+        }
+        return super.recommendRelatedItemsWithDetails(basket, n, candidates, exclude);
+    }
+
+    /**
+     * Recommend items related to each of many baskets, with the default candidates and
+     * exclusions.  Single-item baskets are answered from the table where possible; the rest are
+     * scored together with {@link ItemItemItemBasedItemScorer#scoreRelatedItemsWithDetails(List, java.util.Collection, ExecutorService)}
+     * if the scorer supports it, and one at a time otherwise.
+     *
+     * @param baskets  The baskets.
+     * @param n        The number of items to recommend for each basket.
+     * @param executor The executor to score on, or {@code null} to score in the calling thread.
+     * @return The recommendations for each basket, in the order of {@code baskets}.
+     */
+    public List<ResultList> recommendRelatedItemsWithDetails(List<? extends Set<Long>> baskets, int n,
+                                                             ExecutorService executor) {
+        ResultList[] results = new ResultList[baskets.size()];
+        List<Set<Long>> pending = new ArrayList<>();
+        List<Integer> pendingIndex = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            Set<Long> basket = baskets.get(i);
+            if (basket.size() == 1 && n > 0 && n <= table.getListLength()) {
+                results[i] = table.getRelatedItems(basket.iterator().next(), n);
+            }
+            if (results[i] == null) {
+                pending.add(basket);
+                pendingIndex.add(i);
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            if (scorer instanceof ItemItemItemBasedItemScorer) {
+                List<ResultMap> scores = ((ItemItemItemBasedItemScorer) scorer)
+                        .scoreRelatedItemsWithDetails(pending, itemDAO.getItemIds(), executor);
+                for (int j = 0; j < pending.size(); j++) {
+                    results[pendingIndex.get(j)] = recommend(n, scores.get(j));
+                }
+            } else {
+                for (int j = 0; j < pending.size(); j++) {
+                    results[pendingIndex.get(j)] =
+                            super.recommendRelatedItemsWithDetails(pending.get(j), n, null, null);
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+}
@@ -38,7 +38,12 @@ public class SimilaritySumNeighborhoodScorer implements NeighborhoodScorer, Seri
     @Override
     public void score(long item, Long2DoubleMap neighbors, Long2DoubleMap scores, ItemItemScoreAccumulator accum) {
         if (neighbors.size() > 0) {
-            double sum = Vectors.sum(neighbors);
+            double sum;
+            if (neighbors instanceof NeighborhoodBuffer) {
+                sum = ((NeighborhoodBuffer) neighbors).sum();
+            } else {
+                sum = Vectors.sum(neighbors);
+            }
             accum.add(item, sum, neighbors.size(), sum);
         }
     }
@@ -40,9 +40,13 @@ public class WeightedAverageNeighborhoodScorer implements NeighborhoodScorer, Se
 
     @Override
     public void score(long item, Long2DoubleMap neighbors, Long2DoubleMap scores, ItemItemScoreAccumulator accum) {
-        double weight = Vectors.sumAbs(neighbors);
+        NeighborhoodBuffer buffer = null;
+        if (neighbors instanceof NeighborhoodBuffer) {
+            buffer = (NeighborhoodBuffer) neighbors;
+        }
+        double weight = buffer != null ? buffer.sumAbs() : Vectors.sumAbs(neighbors);
         if (weight > 0) {
-            double weightedSum = Vectors.dotProduct(neighbors, scores);
+            double weightedSum = buffer != null ? buffer.dotProduct(scores) : Vectors.dotProduct(neighbors, scores);
             accum.add(item, weightedSum / weight, neighbors.size(), weight);
         }
     }
@@ -32,6 +32,11 @@ import java.util.NoSuchElementException;
  * are not associated with any user, if it determines that filtering is likely to be more
  * expensive.
  *
+ * <p>Visited items are marked by their index in the item universe, in an array of generation
+ * stamps that is reused by the iterators a thread creates one after another.  An iterator
+ * takes the thread's stamps when it is created and gives them back once it is exhausted;
+ * one created while another is still live allocates its own.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 class AdaptiveSparseItemIterator extends AbstractLongIterator {
@@ -41,7 +46,13 @@ class AdaptiveSparseItemIterator extends AbstractLongIterator {
     private final long lowerBound;
     private final int universeSize;
 
-    private LongSet seen;
+    /**
+     * Each thread's stamps, when no live iterator of the thread is using them.
+     */
+    private static final ThreadLocal<VisitedItems> spareVisited = new ThreadLocal<>();
+
+    private VisitedItems visited;
+    private int seenCount;
 
     private boolean advanced;
     private boolean atEnd;
@@ -70,7 +81,14 @@ class AdaptiveSparseItemIterator extends AbstractLongIterator {
             universeSize = context.getItems().tailSet(lowerBound).size();
         }
 
-        seen = new LongOpenHashSet(context.getItems().size());
+        int nitems = context.getItems().size();
+        visited = spareVisited.get();
+        if (visited == null || visited.stamps.length < nitems) {
+            visited = new VisitedItems(nitems);
+        } else {
+            spareVisited.remove();
+        }
+        visited.reset();
         userIter = users.iterator();
     }
 
@@ -86,10 +104,10 @@ class AdaptiveSparseItemIterator extends AbstractLongIterator {
                 // try to estimate cost - if we have seen 75% of items, and have at least
                 // 50% users left to go, just use all the items
                 LongSortedSet items = null;
-                if (universeSize - seen.size() <= universeSize / 4 && usersSeen <= users.size() / 2) {
+                if (universeSize - seenCount <= universeSize / 4 && usersSeen <= users.size() / 2) {
                     if (logger.isTraceEnabled()) {
                         logger.trace("dropping sparsity, using full universe (saw {} of {} items, {} of {} users)",
-                                     seen.size(), universeSize, usersSeen, users.size());
+                                     seenCount, universeSize, usersSeen, users.size());
                     }
                     items = context.getItems();
                     userIter = null; // so this is the last set of items we consider
@@ -111,13 +129,18 @@ class AdaptiveSparseItemIterator extends AbstractLongIterator {
                 // still no set of items, this means we're done
                 advanced = true;
                 atEnd = true;
+                // hand the stamps back for the thread's next iterator
+                spareVisited.set(visited);
+                visited = null;
             } else if (currentItems.hasNext()) {
                 // there is a new item, try it
                 nextItem = currentItems.nextLong();
-                if (!seen.contains(nextItem)) {
+                int idx = context.getItemIndex(nextItem);
+                assert idx >= 0;
+                if (visited.mark(idx)) {
                     // it is unseen, we will let this be the next item
                     advanced = true;
-                    seen.add(nextItem);
+                    seenCount += 1;
                 }
             } else {
                 // there is no next item in the current set, clear it and try again
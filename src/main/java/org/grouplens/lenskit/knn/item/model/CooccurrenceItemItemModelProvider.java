@@ -0,0 +1,235 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.longs.*;
+import org.grouplens.lenskit.transform.threshold.Threshold;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ItemSimilarityThreshold;
+import org.lenskit.knn.item.MinCommonUsers;
+import org.lenskit.knn.item.ModelBuildThreads;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.util.ProgressLogger;
+import org.lenskit.util.ScoredIdAccumulator;
+import org.lenskit.util.TopNScoredIdAccumulator;
+import org.lenskit.util.UnlimitedScoredIdAccumulator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Build an item-item cosine model by sparse matrix multiplication.
+ *
+ * <p>Item-item cosine similarity is the normalized product {@code X'X} of the item-user
+ * matrix.  Rather than probing candidate pairs and computing each similarity separately,
+ * this builder computes each row of the product directly: for every user of an item, it walks
+ * that user's items and accumulates the co-occurrence products into a dense per-thread scratch
+ * row.  The cost is proportional to the sum of the squared user degrees instead of the number
+ * of candidate pairs, which makes it much cheaper on sparse unary data.  Rows are built in
+ * parallel over partitions of the item universe, directly on the compressed rows of an
+ * {@link IndexedItemItemBuildContext}.</p>
+ *
+ * <p>The similarity is always the (undamped) cosine of the item vectors in the build context,
+ * so this builder is equivalent to {@link ItemItemModelProvider} with the default
+ * {@link org.grouplens.lenskit.vectors.similarity.CosineVectorSimilarity}; the configured
+ * {@link org.lenskit.knn.item.ItemSimilarity} is not consulted.  Use it by binding
+ * {@link ItemItemModel} (or {@link SimilarityMatrixModel}) to this provider.</p>
+ *
+ * <p>With {@link org.lenskit.knn.item.UnaryRatings} set, the context holds no values, and the
+ * product degenerates to counting: every visit to another item is one common user, so a row
+ * only counts, and the similarity is the cosine of the binary item vectors,
+ * {@code |A ∩ B| / sqrt(|A| |B|)}.  Rating values and the user vector normalizer are then
+ * ignored.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class CooccurrenceItemItemModelProvider implements Provider<SimilarityMatrixModel> {
+    private static final Logger logger = LoggerFactory.getLogger(CooccurrenceItemItemModelProvider.class);
+
+    private final IndexedItemItemBuildContext buildContext;
+    private final Threshold threshold;
+    private final int minCommonUsers;
+    private final int modelSize;
+    private final int nthreads;
+
+    @Inject
+    public CooccurrenceItemItemModelProvider(@Transient IndexedItemItemBuildContext context,
+                                             @Transient @ItemSimilarityThreshold Threshold thresh,
+                                             @MinCommonUsers int minCU,
+                                             @ModelSize int size,
+                                             @ModelBuildThreads int threads) {
+        buildContext = context;
+        threshold = thresh;
+        minCommonUsers = minCU;
+        modelSize = size;
+        nthreads = threads;
+    }
+
+    @Override
+    public SimilarityMatrixModel get() {
+        final long[] items = buildContext.getItems().toLongArray();
+        final int nitems = items.length;
+        logger.info("building {}co-occurrence item-item model for {} items",
+                    buildContext.isUnary() ? "unary " : "", nitems);
+
+        Stopwatch timer = Stopwatch.createStarted();
+
+        final Long2DoubleMap[] rows = new Long2DoubleMap[nitems];
+        final ProgressLogger progress = ProgressLogger.create(logger)
+                                                      .setCount(nitems)
+                                                      .setLabel("item-item model build")
+                                                      .setWindow(50)
+                                                      .start();
+        final ThreadLocal<RowScratch> scratch = new ThreadLocal<RowScratch>() {
+            @Override
+            protected RowScratch initialValue() {
+                return new RowScratch(nitems, buildContext.isUnary());
+            }
+        };
+
+        ForkJoinPool pool = ItemRangeTask.createPool(nthreads);
+        try {
+            ItemRangeTask.run(pool, nitems, ItemRangeTask.DEFAULT_GRAIN, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    RowScratch row = scratch.get();
+                    for (int i = lo; i < hi; i++) {
+                        rows[i] = computeRow(buildContext, items, i, row);
+                        synchronized (progress) {
+                            progress.advance();
+                        }
+                    }
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        progress.finish();
+        timer.stop();
+        logger.info("built co-occurrence model in {}", timer);
+
+        Long2ObjectMap<Long2DoubleMap> results = new Long2ObjectOpenHashMap<>(nitems);
+        for (int i = 0; i < nitems; i++) {
+            results.put(items[i], rows[i]);
+        }
+        return new SimilarityMatrixModel(results);
+    }
+
+    private Long2DoubleMap computeRow(IndexedItemItemBuildContext matrix, long[] items, int i, RowScratch row) {
+        int start = matrix.itemOffsets[i];
+        int end = matrix.itemOffsets[i + 1];
+        if (end - start < minCommonUsers || matrix.itemNorms[i] == 0) {
+            // if it doesn't have enough users, it can't have enough common users
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+
+        boolean unary = matrix.isUnary();
+        if (unary) {
+            // count the users this item shares with every co-occurring item
+            for (int k = start; k < end; k++) {
+                int user = matrix.itemUsers[k];
+                for (int m = matrix.userOffsets[user], mEnd = matrix.userOffsets[user + 1]; m < mEnd; m++) {
+                    int j = matrix.userItems[m];
+                    if (j != i) {
+                        row.count(j);
+                    }
+                }
+            }
+        } else {
+            // accumulate the dot products with every co-occurring item
+            for (int k = start; k < end; k++) {
+                int user = matrix.itemUsers[k];
+                double a = matrix.itemValues[k];
+                for (int m = matrix.userOffsets[user], mEnd = matrix.userOffsets[user + 1]; m < mEnd; m++) {
+                    int j = matrix.userItems[m];
+                    if (j != i) {
+                        row.add(j, a * matrix.userValues[m]);
+                    }
+                }
+            }
+        }
+
+        ScoredIdAccumulator acc = row.accumulator;
+        double norm = matrix.itemNorms[i];
+        for (int t = 0; t < row.ntouched; t++) {
+            int j = row.touched[t];
+            int common = row.counts[j];
+            if (common >= minCommonUsers && matrix.itemNorms[j] > 0) {
+                double sim;
+                if (unary) {
+                    sim = common / Math.sqrt((double) (end - start) * matrix.degree(j));
+                } else {
+                    sim = row.dots[j] / (norm * matrix.itemNorms[j]);
+                }
+                sim = Math.round(sim * 100.0);
+                sim = sim / 100.0;
+                if (threshold.retain(sim)) {
+                    acc.put(items[j], sim);
+                }
+            }
+            if (!unary) {
+                row.dots[j] = 0;
+            }
+            row.counts[j] = 0;
+        }
+        row.ntouched = 0;
+        return acc.finishMap();
+    }
+
+    /**
+     * A dense row of the product, reused by one worker thread: the dot product and the number
+     * of common users for every item, with the list of items a row has touched so that
+     * {@link #computeRow} can clear just those.  Unary rows only count, and have no dots.
+     */
+    private class RowScratch {
+        final double[] dots;
+        final int[] counts;
+        final int[] touched;
+        int ntouched;
+        final ScoredIdAccumulator accumulator;
+
+        RowScratch(int n, boolean unary) {
+            dots = unary ? null : new double[n];
+            counts = new int[n];
+            touched = new int[n];
+            if (modelSize == 0) {
+                accumulator = new UnlimitedScoredIdAccumulator();
+            } else {
+                accumulator = new TopNScoredIdAccumulator(modelSize);
+            }
+        }
+
+        void add(int j, double v) {
+            count(j);
+            dots[j] += v;
+        }
+
+        void count(int j) {
+            if (counts[j]++ == 0) {
+                touched[ntouched++] = j;
+            }
+        }
+    }
+}
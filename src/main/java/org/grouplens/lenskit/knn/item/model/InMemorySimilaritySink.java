@@ -0,0 +1,94 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.lenskit.util.ScoredIdAccumulator;
+import org.lenskit.util.TopNScoredIdAccumulator;
+import org.lenskit.util.UnlimitedScoredIdAccumulator;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+/**
+ * Similarity sink that keeps a row accumulator per item in memory.  Each row is guarded by
+ * its own lock, so workers only contend when they offer to the same row at the same time.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+class InMemorySimilaritySink implements SimilaritySink {
+    /**
+     * Rough per-entry cost of a row accumulator (ID, score and heap slot), in bytes.
+     */
+    private static final long ENTRY_BYTES = 24;
+    /**
+     * Rough fixed cost of a row accumulator, in bytes.
+     */
+    private static final long ROW_BYTES = 128;
+
+    private final SortedKeyIndex items;
+    private final ScoredIdAccumulator[] rows;
+
+    InMemorySimilaritySink(LongSortedSet universe, int modelSize) {
+        items = SortedKeyIndex.fromCollection(universe);
+        int n = items.size();
+        rows = new ScoredIdAccumulator[n];
+        for (int i = 0; i < n; i++) {
+            if (modelSize == 0) {
+                rows[i] = new UnlimitedScoredIdAccumulator();
+            } else {
+                rows[i] = new TopNScoredIdAccumulator(modelSize);
+            }
+        }
+    }
+
+    /**
+     * Estimate the heap needed to accumulate a truncated model in memory.
+     *
+     * @param nitems    The number of items.
+     * @param modelSize The number of neighbors retained per row; must be positive.
+     * @return The estimated number of bytes.
+     */
+    static long estimateBytes(int nitems, int modelSize) {
+        return nitems * (modelSize * ENTRY_BYTES + ROW_BYTES);
+    }
+
+    @Override
+    public void put(long row, long neighbor, double sim) {
+        ScoredIdAccumulator acc = rows[items.getIndex(row)];
+        synchronized (acc) {
+            acc.put(neighbor, sim);
+        }
+    }
+
+    @Override
+    public Long2ObjectMap<Long2DoubleMap> finishRows() {
+        int n = rows.length;
+        Long2ObjectMap<Long2DoubleMap> results = new Long2ObjectOpenHashMap<>(n);
+        for (int i = 0; i < n; i++) {
+            results.put(items.getKey(i), rows[i].finishMap());
+            // release the accumulator as soon as its row is done
+            rows[i] = null;
+        }
+        return results;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Serializable;
+
+/**
+ * Int-indexed variant of {@link ItemItemBuildContext}.  Items are remapped to dense indices, and
+ * the normalized rating matrix is stored in both orientations as compressed sparse rows: an
+ * offset array, an index array and a {@code float} value array, 16 bytes per rating in all,
+ * against about 24 for the item vectors and user item sets of the standard context.  Entries of
+ * each item row are sorted by user index, and entries of each user row by item index.
+ *
+ * <p>For {@linkplain org.lenskit.knn.item.UnaryRatings unary} data the context is value-free:
+ * there are no value arrays, only which users rated each item, in 8 bytes per rating.  Each
+ * item's norm is then the root of its number of users.</p>
+ *
+ * <p>Only builders written against this layout use it: currently
+ * {@link CooccurrenceItemItemModelProvider}, which runs its kernel directly on the arrays.
+ * {@link ItemItemModelProvider}, the configured {@link org.lenskit.knn.item.ItemSimilarity}
+ * and the neighbor iteration strategies still work on the standard context: the similarity
+ * functions take sparse vectors and the strategies take {@link ItemItemBuildContext}s, so this
+ * class exposes no more than that builder needs.  Values are stored as {@code float}; products
+ * are accumulated in {@code double}.</p>
+ *
+ * <p>Like the standard context, this is shareable, but built models should not include it, and
+ * any dependencies on it should be {@link Transient}.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@DefaultProvider(IndexedItemItemBuildContextProvider.class)
+@Shareable
+public class IndexedItemItemBuildContext implements Serializable {
+    private static final long serialVersionUID = 3L;
+
+    @Nonnull
+    private final SortedKeyIndex items;
+
+    final int[] itemOffsets;
+    final int[] itemUsers;
+    @Nullable
+    final float[] itemValues;
+    final double[] itemNorms;
+
+    final int[] userOffsets;
+    final int[] userItems;
+    @Nullable
+    final float[] userValues;
+
+    /**
+     * Set up a new indexed build context.
+     *
+     * @param items       The item index.
+     * @param itemOffsets The start of each item's row in the item arrays (length {@code nitems + 1}).
+     * @param itemUsers   The user index of each item-major entry.
+     * @param itemValues  The value of each item-major entry, or {@code null} for unary data.
+     * @param userOffsets The start of each user's row in the user arrays (length {@code nusers + 1}).
+     * @param userItems   The item index of each user-major entry.
+     * @param userValues  The value of each user-major entry, or {@code null} for unary data.
+     */
+    IndexedItemItemBuildContext(@Nonnull SortedKeyIndex items,
+                                int[] itemOffsets, int[] itemUsers, @Nullable float[] itemValues,
+                                int[] userOffsets, int[] userItems, @Nullable float[] userValues) {
+        this.items = items;
+        this.itemOffsets = itemOffsets;
+        this.itemUsers = itemUsers;
+        this.itemValues = itemValues;
+        this.userOffsets = userOffsets;
+        this.userItems = userItems;
+        this.userValues = userValues;
+
+        int n = items.size();
+        itemNorms = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (itemValues == null) {
+                itemNorms[i] = Math.sqrt(degree(i));
+                continue;
+            }
+            double ssq = 0;
+            for (int k = itemOffsets[i]; k < itemOffsets[i + 1]; k++) {
+                double v = itemValues[k];
+                ssq += v * v;
+            }
+            itemNorms[i] = Math.sqrt(ssq);
+        }
+    }
+
+    /**
+     * Query whether this context is value-free.
+     *
+     * @return {@code true} if only the users of each item are stored.
+     */
+    boolean isUnary() {
+        return itemValues == null;
+    }
+
+    /**
+     * Get the number of users of an item.
+     *
+     * @param item The item index.
+     * @return The length of the item's row.
+     */
+    int degree(int item) {
+        return itemOffsets[item + 1] - itemOffsets[item];
+    }
+
+    /**
+     * Get the set of items.
+     *
+     * @return The set of all items to build a model over.
+     */
+    @Nonnull
+    public LongSortedSet getItems() {
+        return items.keySet();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
+import org.grouplens.lenskit.vectors.ImmutableSparseVector;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.lenskit.data.ratings.RatingVectorPDAO;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.UnaryRatings;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Provider that sets up an {@link IndexedItemItemBuildContext}.  User rating vectors are
+ * normalized as in {@link ItemItemBuildContextProvider}, then remapped to dense indices and
+ * laid out as compressed sparse rows in both orientations.
+ *
+ * <p>The user rating vectors are streamed twice.  The first pass only counts the ratings of each
+ * user and item, which gives both indices and the exact size of every row; the second pass
+ * normalizes each user's vector and writes it straight into its user row.  The item rows are
+ * then filled by a counting transpose.  No copy of the ratings is buffered between the
+ * passes.</p>
+ *
+ * <p>If the ratings are {@linkplain UnaryRatings unary}, the second pass only records which
+ * items each user rated; the vectors are not normalized and no values are stored.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class IndexedItemItemBuildContextProvider implements Provider<IndexedItemItemBuildContext> {
+    private static final Logger logger = LoggerFactory.getLogger(IndexedItemItemBuildContextProvider.class);
+
+    private final RatingVectorPDAO rvDAO;
+    private final UserVectorNormalizer normalizer;
+    private final boolean unary;
+
+    /**
+     * Construct an indexed build context provider.
+     *
+     * @param rvd The rating vector DAO.
+     * @param normalizer The user vector normalizer.
+     * @param unary Whether to store only which items each user rated.
+     */
+    @Inject
+    public IndexedItemItemBuildContextProvider(@Transient RatingVectorPDAO rvd,
+                                               @Transient UserVectorNormalizer normalizer,
+                                               @UnaryRatings boolean unary) {
+        rvDAO = rvd;
+        this.normalizer = normalizer;
+        this.unary = unary;
+    }
+
+    @Override
+    public IndexedItemItemBuildContext get() {
+        logger.info("constructing {}indexed build context", unary ? "unary " : "");
+        if (!unary) {
+            logger.debug("using normalizer {}", normalizer);
+        }
+        Stopwatch timer = Stopwatch.createStarted();
+
+        // count the ratings of each user and item
+        LongArrayList userIds = new LongArrayList();
+        IntArrayList userCounts = new IntArrayList();
+        Long2IntOpenHashMap itemCounts = new Long2IntOpenHashMap();
+        try (ObjectStream<IdBox<Long2DoubleMap>> stream = rvDAO.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user : stream) {
+                userIds.add(user.getId());
+                userCounts.add(user.getValue().size());
+                LongIterator iter = user.getValue().keySet().iterator();
+                while (iter.hasNext()) {
+                    itemCounts.addTo(iter.nextLong(), 1);
+                }
+            }
+        }
+        final int nusers = userIds.size();
+
+        long[] itemIds = itemCounts.keySet().toLongArray();
+        LongArrays.radixSort(itemIds);
+        SortedKeyIndex items = SortedKeyIndex.wrap(itemIds, itemIds.length);
+        final int nitems = items.size();
+        int[] itemOffsets = new int[nitems + 1];
+        for (int i = 0; i < nitems; i++) {
+            itemOffsets[i + 1] = itemOffsets[i] + itemCounts.get(itemIds[i]);
+        }
+        itemCounts = null;
+        final int nnz = itemOffsets[nitems];
+
+        // lay users out in ID order, as the standard context visits them
+        long[] uids = userIds.toLongArray();
+        int[] order = new int[nusers];
+        for (int u = 0; u < nusers; u++) {
+            order[u] = u;
+        }
+        LongArrays.radixSortIndirect(order, uids, true);
+        Long2IntMap userIndex = new Long2IntOpenHashMap(nusers);
+        userIndex.defaultReturnValue(-1);
+        int[] userOffsets = new int[nusers + 1];
+        for (int u = 0; u < nusers; u++) {
+            userIndex.put(uids[order[u]], u);
+            userOffsets[u + 1] = userOffsets[u] + userCounts.getInt(order[u]);
+        }
+        userIds = null;
+        userCounts = null;
+        if (userOffsets[nusers] != nnz) {
+            throw new IllegalStateException("rating data changed while building context");
+        }
+
+        // normalize each user (unless unary) straight into its row; its items come in ID, and so
+        // index, order
+        int[] userItems = new int[nnz];
+        float[] userValues = unary ? null : new float[nnz];
+        try (ObjectStream<IdBox<Long2DoubleMap>> stream = rvDAO.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user : stream) {
+                long uid = user.getId();
+                int u = userIndex.get(uid);
+                SparseVector summary = ImmutableSparseVector.create(user.getValue());
+                if (u < 0 || summary.size() != userOffsets[u + 1] - userOffsets[u]) {
+                    throw new IllegalStateException("rating data changed while building context");
+                }
+                SparseVector normed = summary;
+                if (!unary) {
+                    MutableSparseVector mnormed = summary.mutableCopy();
+                    normalizer.normalize(uid, summary, mnormed);
+                    normed = mnormed;
+                }
+
+                int pos = userOffsets[u];
+                for (VectorEntry e : normed.fast()) {
+                    int item = items.tryGetIndex(e.getKey());
+                    if (item < 0) {
+                        throw new IllegalStateException("rating data changed while building context");
+                    }
+                    userItems[pos] = item;
+                    if (userValues != null) {
+                        userValues[pos] = (float) e.getValue();
+                    }
+                    pos++;
+                }
+            }
+        }
+
+        // item-major rows by counting transpose; users are visited in order, so rows come out sorted
+        int[] fill = new int[nitems];
+        System.arraycopy(itemOffsets, 0, fill, 0, nitems);
+        int[] itemUsers = new int[nnz];
+        float[] itemValues = unary ? null : new float[nnz];
+        for (int u = 0; u < nusers; u++) {
+            for (int k = userOffsets[u]; k < userOffsets[u + 1]; k++) {
+                int dst = fill[userItems[k]]++;
+                itemUsers[dst] = u;
+                if (itemValues != null) {
+                    itemValues[dst] = userValues[k];
+                }
+            }
+        }
+        for (int i = 0; i < nitems; i++) {
+            if (fill[i] != itemOffsets[i + 1]) {
+                throw new IllegalStateException("rating data changed while building context");
+            }
+        }
+
+        timer.stop();
+        logger.info("built indexed context of {} ratings for {} users and {} items in {}",
+                    nnz, nusers, nitems, timer);
+        return new IndexedItemItemBuildContext(items, itemOffsets, itemUsers, itemValues,
+                                               userOffsets, userItems, userValues);
+    }
+}
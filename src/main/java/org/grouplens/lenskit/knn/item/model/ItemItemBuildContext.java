@@ -87,6 +87,17 @@ public class ItemItemBuildContext implements Serializable {
         return items.keySet();
     }
 
+    /**
+     * Get the index of an item in the item universe.
+     *
+     * @param item The item ID.
+     * @return The item's index in {@link #getItems()}, or a negative value if it is not in the
+     *         universe.
+     */
+    int getItemIndex(long item) {
+        return items.tryGetIndex(item);
+    }
+
     /**
      * Get the rating vector for an item. Rating vectors contain normalized ratings,
      * using the applicable {@link VectorNormalizer} on the user rating vectors.
@@ -20,12 +20,16 @@
  */
 package org.lenskit.knn.item.model;
 
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
-import org.grouplens.lenskit.scored.ScoredIdListBuilder;
-import org.grouplens.lenskit.scored.ScoredIds;
 import org.grouplens.lenskit.transform.normalize.UserVectorNormalizer;
 import org.grouplens.lenskit.vectors.ImmutableSparseVector;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
@@ -33,6 +37,7 @@ import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
 import org.lenskit.data.ratings.RatingVectorPDAO;
 import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ModelBuildThreads;
 import org.lenskit.util.IdBox;
 import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.io.ObjectStream;
@@ -42,34 +47,50 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Provider that sets up an {@link ItemItemBuildContext}.
- * 
+ *
+ * <p>The user rating vectors are streamed twice.  The first pass only counts each item's ratings
+ * (and records each user's candidate set), so the item vectors can be allocated at their exact
+ * size; the second pass normalizes the user vectors and copies them into those vectors in
+ * batches of at least {@value #BATCH_RATINGS} ratings (or one per item, if there are more
+ * items).  Each batch is split into partitions of
+ * users, which are copied in parallel: counting each partition's ratings of each item gives it
+ * its own slice of every item vector, so the copies need no locking and keep the stream order.
+ * Only one batch of ratings is buffered at a time.  Item vectors whose users did not arrive in
+ * ID order are then sorted in parallel.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class ItemItemBuildContextProvider implements Provider<ItemItemBuildContext> {
 
     private static final Logger logger = LoggerFactory.getLogger(ItemItemBuildContextProvider.class);
+    /**
+     * The minimum number of ratings to buffer before copying them into the item vectors.
+     */
+    private static final int BATCH_RATINGS = 1 << 18;
 
     private final RatingVectorPDAO rvDAO;
     private final UserVectorNormalizer normalizer;
+    private final int nthreads;
 
     /**
      * Construct an item-item build context provider.
      *
      * @param rvd The rating vector DAO.
      * @param normalizer The user vector normalizer.
+     * @param threads The number of threads to use for filling and sorting item vectors (0 for
+     *                one per processor).
      */
     @Inject
     public ItemItemBuildContextProvider(@Transient RatingVectorPDAO rvd,
-                                        @Transient UserVectorNormalizer normalizer) {
+                                        @Transient UserVectorNormalizer normalizer,
+                                        @ModelBuildThreads int threads) {
         rvDAO = rvd;
         this.normalizer = normalizer;
+        nthreads = threads;
     }
 
     /**
@@ -81,80 +102,247 @@ public class ItemItemBuildContextProvider implements Provider<ItemItemBuildConte
     public ItemItemBuildContext get() {
         logger.info("constructing build context");
         logger.debug("using normalizer {}", normalizer);
+        Stopwatch timer = Stopwatch.createStarted();
 
-        logger.debug("Building item data");
-        Long2ObjectMap<ScoredIdListBuilder> itemRatingData = new Long2ObjectOpenHashMap<>(1000);
+        logger.debug("Counting user data");
         Long2ObjectMap<LongSortedSet> userItems = new Long2ObjectOpenHashMap<>(1000);
-        buildItemRatings(itemRatingData, userItems);
-
-        SortedKeyIndex items = SortedKeyIndex.fromCollection(itemRatingData.keySet());
-        final int n = items.size();
-        assert n == itemRatingData.size();
-        // finalize the item data into vectors
-        SparseVector[] itemRatings = new SparseVector[n];
-
-        for (int i = 0; i < n; i++) {
-            final long item = items.getKey(i);
-            ScoredIdListBuilder ratings = itemRatingData.get(item);
-            SparseVector v = ratings.buildVector();
-            assert v.size() == ratings.size();
-            itemRatings[i] = v;
-            // release some memory
-            ratings.clear();
+        Long2IntOpenHashMap itemCounts = new Long2IntOpenHashMap();
+        long nnz = countRatings(userItems, itemCounts);
+
+        long[] keys = itemCounts.keySet().toLongArray();
+        LongArrays.radixSort(keys);
+        SortedKeyIndex items = SortedKeyIndex.wrap(keys, keys.length);
+        final int nitems = items.size();
+        final long[][] rowKeys = new long[nitems][];
+        final double[][] rowValues = new double[nitems][];
+        for (int i = 0; i < nitems; i++) {
+            int count = itemCounts.get(keys[i]);
+            rowKeys[i] = new long[count];
+            rowValues[i] = new double[count];
         }
+        itemCounts = null;
 
-        logger.debug("item data completed");
+        final SparseVector[] itemRatings = new SparseVector[nitems];
+        ForkJoinPool pool = ItemRangeTask.createPool(nthreads);
+        try {
+            logger.debug("Building item data");
+            fillRows(items, rowKeys, rowValues, pool);
 
-        //ItemItemBuildContext object = new ItemItemBuildContext(items, itemRatings, userItems);
-        /*try {
-            FileOutputStream f_out = new FileOutputStream("etc/initial_model.data");
-            ObjectOutputStream obj_out = new ObjectOutputStream (f_out);
-            obj_out.writeObject(object);
-            obj_out.close();
+            ItemRangeTask.run(pool, nitems, ItemRangeTask.DEFAULT_GRAIN, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    for (int i = lo; i < hi; i++) {
+                        sortRow(rowKeys[i], rowValues[i]);
+                        itemRatings[i] = MutableSparseVector.wrap(rowKeys[i], rowValues[i]).freeze();
+                    }
+                }
+            });
+        } finally {
+            pool.shutdown();
         }
-        catch(Exception e) {
-            System.err.println(e.toString());
-            e.printStackTrace(System.err);
-            System.exit(1);
-        }*/
 
+        timer.stop();
+        logger.info("built context of {} ratings for {} users and {} items in {}",
+                    nnz, userItems.size(), nitems, timer);
         return new ItemItemBuildContext(items, itemRatings, userItems);
-        //object = new ItemItemBuildContext(null,null,null);
-        //return object;
     }
 
     /**
-     * Transpose the user matrix so we have a matrix of item ids to ratings. Accumulate user item vectors into
-     * the candidate sets for each item
+     * Count each item's ratings, and record each user's rated items as its candidate set.
      *
-     * @param itemRatings    mapping from item ids to (userId: rating) maps (to be filled)
      * @param userItems mapping of user IDs to rated item sets to be filled.
+     * @param itemCounts mapping of item IDs to rating counts to be filled.
+     * @return The total number of ratings.
+     */
+    private long countRatings(Long2ObjectMap<LongSortedSet> userItems, Long2IntOpenHashMap itemCounts) {
+        long nnz = 0;
+        try (ObjectStream<IdBox<Long2DoubleMap>> stream = rvDAO.streamUsers()) {
+            for (IdBox<Long2DoubleMap> user : stream) {
+                LongSortedSet rated = LongUtils.packedSet(user.getValue().keySet());
+                for (long item : rated) {
+                    itemCounts.addTo(item, 1);
+                }
+                nnz += rated.size();
+                userItems.put(user.getId(), rated);
+            }
+        }
+        return nnz;
+    }
+
+    /**
+     * Normalize the user rating vectors and copy them into the item vectors.
+     *
+     * @param items The item index.
+     * @param rowKeys The user IDs of each item vector, allocated at their exact size.
+     * @param rowValues The values of each item vector, allocated at their exact size.
+     * @param pool The pool to copy the batches on.
      */
-    private void buildItemRatings(Long2ObjectMap<ScoredIdListBuilder> itemRatings,
-                                  Long2ObjectMap<LongSortedSet> userItems) {
-        // initialize the transposed array to collect item vector data
+    private void fillRows(SortedKeyIndex items, long[][] rowKeys, double[][] rowValues,
+                          ForkJoinPool pool) {
+        int[] fill = new int[items.size()];
+        UserBatch batch = new UserBatch(pool.getParallelism(), items.size());
+        // each copy walks every item's cursors, so make it copy at least as many ratings
+        int batchSize = Math.max(BATCH_RATINGS, items.size());
         try (ObjectStream<IdBox<Long2DoubleMap>> stream = rvDAO.streamUsers()) {
             for (IdBox<Long2DoubleMap> user : stream) {
                 long uid = user.getId();
-                Long2DoubleMap ratings = user.getValue();
-                SparseVector summary = ImmutableSparseVector.create(ratings);
+                SparseVector summary = ImmutableSparseVector.create(user.getValue());
                 MutableSparseVector normed = summary.mutableCopy();
                 normalizer.normalize(uid, summary, normed);
 
-                for (VectorEntry rating : normed) {
-                    final long item = rating.getKey();
-                    // get the item's rating accumulator
-                    ScoredIdListBuilder ivect = itemRatings.get(item);
-                    if (ivect == null) {
-                        ivect = ScoredIds.newListBuilder(100);
-                        itemRatings.put(item, ivect);
+                batch.userIds.add(uid);
+                for (VectorEntry rating : normed.fast()) {
+                    int item = items.tryGetIndex(rating.getKey());
+                    if (item < 0) {
+                        throw new IllegalStateException("rating data changed while building context");
                     }
-                    ivect.add(uid, rating.getValue());
+                    batch.itemIndexes.add(item);
+                    batch.values.add(rating.getValue());
                 }
+                batch.rowStarts.add(batch.itemIndexes.size());
+                if (batch.itemIndexes.size() >= batchSize) {
+                    batch.copy(pool, fill, rowKeys, rowValues);
+                }
+            }
+        }
+        batch.copy(pool, fill, rowKeys, rowValues);
 
-                // get the item's candidate set
-                userItems.put(uid, LongUtils.packedSet(summary.keySet()));
+        for (int i = 0; i < fill.length; i++) {
+            if (fill[i] != rowKeys[i].length) {
+                throw new IllegalStateException("rating data changed while building context");
             }
         }
     }
+
+    /**
+     * A batch of normalized user ratings, stored flat in stream order, and the per-partition
+     * cursors used to copy it into the item vectors.
+     */
+    private static class UserBatch {
+        final LongArrayList userIds = new LongArrayList();
+        final IntArrayList rowStarts = IntArrayList.wrap(new int[]{0});
+        final IntArrayList itemIndexes = new IntArrayList();
+        final DoubleArrayList values = new DoubleArrayList();
+        /**
+         * Each partition's ratings of each item, and then its next position in each item
+         * vector.  Only the entries of items a partition rated are reset after a copy.
+         */
+        final int[][] cursors;
+
+        UserBatch(int nparts, int nitems) {
+            cursors = new int[nparts][nitems];
+        }
+
+        /**
+         * Copy the batch into the item vectors, and clear it.
+         *
+         * @param pool The pool to copy on.
+         * @param fill The number of values already copied into each item vector, to be advanced.
+         * @param rowKeys The user IDs of each item vector.
+         * @param rowValues The values of each item vector.
+         */
+        void copy(ForkJoinPool pool, final int[] fill,
+                  final long[][] rowKeys, final double[][] rowValues) {
+            final int nusers = userIds.size();
+            if (nusers == 0) {
+                return;
+            }
+            final int nparts = Math.min(cursors.length, nusers);
+
+            // count each item's ratings within each partition
+            ItemRangeTask.run(pool, nparts, 1, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    for (int p = lo; p < hi; p++) {
+                        int[] counts = cursors[p];
+                        int end = rowStarts.getInt(partStart(p + 1, nparts, nusers));
+                        for (int k = rowStarts.getInt(partStart(p, nparts, nusers)); k < end; k++) {
+                            counts[itemIndexes.getInt(k)] += 1;
+                        }
+                    }
+                }
+            });
+
+            // turn the counts into each partition's starting position in each item vector
+            ItemRangeTask.run(pool, fill.length, ItemRangeTask.DEFAULT_GRAIN, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    for (int i = lo; i < hi; i++) {
+                        int pos = fill[i];
+                        for (int p = 0; p < nparts; p++) {
+                            int count = cursors[p][i];
+                            cursors[p][i] = pos;
+                            pos += count;
+                        }
+                        if (pos > rowKeys[i].length) {
+                            throw new IllegalStateException("rating data changed while building context");
+                        }
+                        fill[i] = pos;
+                    }
+                }
+            });
+
+            // copy each partition's ratings into its slices
+            ItemRangeTask.run(pool, nparts, 1, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    for (int p = lo; p < hi; p++) {
+                        int[] cursor = cursors[p];
+                        for (int u = partStart(p, nparts, nusers), end = partStart(p + 1, nparts, nusers); u < end; u++) {
+                            long uid = userIds.getLong(u);
+                            for (int k = rowStarts.getInt(u); k < rowStarts.getInt(u + 1); k++) {
+                                int item = itemIndexes.getInt(k);
+                                int pos = cursor[item]++;
+                                rowKeys[item][pos] = uid;
+                                rowValues[item][pos] = values.getDouble(k);
+                            }
+                        }
+                        int end = rowStarts.getInt(partStart(p + 1, nparts, nusers));
+                        for (int k = rowStarts.getInt(partStart(p, nparts, nusers)); k < end; k++) {
+                            cursor[itemIndexes.getInt(k)] = 0;
+                        }
+                    }
+                }
+            });
+
+            userIds.clear();
+            rowStarts.size(1);
+            itemIndexes.clear();
+            values.clear();
+        }
+    }
+
+    /**
+     * Get the first user of a partition of a batch.
+     */
+    private static int partStart(int part, int nparts, int nusers) {
+        return (int) ((long) part * nusers / nparts);
+    }
+
+    /**
+     * Sort an item vector by user ID, unless it already is.
+     */
+    private static void sortRow(long[] keys, double[] values) {
+        int n = keys.length;
+        int i = 1;
+        while (i < n && keys[i - 1] < keys[i]) {
+            i++;
+        }
+        if (i >= n) {
+            return;
+        }
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = k;
+        }
+        LongArrays.radixSortIndirect(order, keys, false);
+        long[] sortedKeys = new long[n];
+        double[] sortedValues = new double[n];
+        for (int k = 0; k < n; k++) {
+            sortedKeys[k] = keys[order[k]];
+            sortedValues[k] = values[order[k]];
+        }
+        System.arraycopy(sortedKeys, 0, keys, 0, n);
+        System.arraycopy(sortedValues, 0, values, 0, n);
+    }
 }
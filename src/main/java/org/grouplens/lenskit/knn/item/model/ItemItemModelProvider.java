@@ -23,27 +23,25 @@ package org.lenskit.knn.item.model;
 import com.google.common.base.Stopwatch;
 import it.unimi.dsi.fastutil.longs.*;
 import org.grouplens.lenskit.transform.threshold.Threshold;
-import org.lenskit.util.ScoredIdAccumulator;
-import org.lenskit.util.TopNScoredIdAccumulator;
-import org.lenskit.util.UnlimitedScoredIdAccumulator;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.ItemSimilarity;
 import org.lenskit.knn.item.ItemSimilarityThreshold;
 import org.lenskit.knn.item.MinCommonUsers;
+import org.lenskit.knn.item.ModelBuildThreads;
 import org.lenskit.knn.item.ModelSize;
+import org.lenskit.knn.item.SpillDirectory;
 import org.lenskit.util.ProgressLogger;
 import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import javax.inject.Inject;
 import javax.inject.Provider;
 import java.io.*;
-import java.text.DecimalFormat;
-import java.util.Scanner;
-import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Build an item-item CF model from rating data.
@@ -57,13 +55,13 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
     private static final Logger logger = LoggerFactory.getLogger(ItemItemModelProvider.class);
 
     private final ItemSimilarity itemSimilarity;
-    private static ItemItemBuildContext buildContext;
+    private ItemItemBuildContext buildContext;
     private final Threshold threshold;
     private final NeighborIterationStrategy neighborStrategy;
     private final int minCommonUsers;
     private final int modelSize;
-    public static volatile int items_done;
-    public static volatile int nitems;
+    private final int nthreads;
+    private final File spillDir;
 
     @Inject
     public ItemItemModelProvider(@Transient ItemSimilarity similarity,
@@ -71,7 +69,9 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
                                  @Transient @ItemSimilarityThreshold Threshold thresh,
                                  @Transient NeighborIterationStrategy nbrStrat,
                                  @MinCommonUsers int minCU,
-                                 @ModelSize int size) {
+                                 @ModelSize int size,
+                                 @ModelBuildThreads int threads,
+                                 @Nullable @SpillDirectory String spillPath) {
         itemSimilarity = similarity;
         buildContext = context;
         //buildContext = getContext();
@@ -79,14 +79,14 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
         neighborStrategy = nbrStrat;
         minCommonUsers = minCU;
         modelSize = size;
-        items_done = 0;
-        nitems = 0;
+        nthreads = threads;
+        spillDir = spillPath != null ? new File(spillPath) : null;
     }
 
     @Override
     public SimilarityMatrixModel get() {
         LongSortedSet allItems = buildContext.getItems();
-        nitems = allItems.size();
+        final int nitems = allItems.size();
 
         logger.info("building item-item model for {} items", nitems);
         logger.debug("using similarity function {}", itemSimilarity);
@@ -101,126 +101,58 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
                 .setWindow(50)
                 .start();
 
-        int n_threads = Runtime.getRuntime().availableProcessors();
-        Thread Pool[] = new Thread[n_threads];
-        //int items_by_thread = nitems/n_threads;
-
-        int previous_items = 0;
-        logger.info("Building {} SimilarityThreads", n_threads);
-        for(int i = 0; i < n_threads; i++ ){
-
-            double items_by = nitems / ((double)n_threads * (double)(n_threads-(i+1)) * (double)((n_threads-(i+1)) * (n_threads-(i+1))));
-            int items_by_thread = (int) items_by;
-
-            if (i < n_threads -1) {
-                LongIterator outer = allItems.subSet(previous_items, previous_items + items_by_thread).iterator();
-                Pool[i] = new Thread(new SimilarityThread(outer, itemSimilarity, i, buildContext,
-                        threshold, neighborStrategy, minCommonUsers));
-            }
-            else {
-                int k = (nitems - ((n_threads - 1) * items_by_thread));
-                LongIterator outer = allItems.subSet(previous_items, previous_items + items_by_thread + k).iterator();
-                Pool[i] = new Thread(new SimilarityThread(outer, itemSimilarity, i, buildContext,
-                        threshold,neighborStrategy,minCommonUsers));
-            }
-            previous_items = previous_items + items_by_thread;
-            Pool[i].start();
-
-        }
-        logger.info("Threads Running");
-        Stopwatch timer;
-        timer = Stopwatch.createStarted();
+        ForkJoinPool pool = ItemRangeTask.createPool(nthreads);
+        Long2ObjectMap<Long2DoubleMap> rows;
         try {
-            for (int j = 0; j < n_threads; j++) {
-                Pool[j].join();
-            }
-            for (int j = 0; j < n_threads; j++) {
-                Pool[j]=null;
-            }
-        }catch (Exception e){
-            e.printStackTrace();
-        }
-        timer.stop();
-        logger.info("Thread computation done in {}", timer);
-
-        progress.finish();
-
-        //Get rid of builContext to save memory
-        buildContext = null;
-
-        logger.info("Building Object from similarities files");
-
-        Stopwatch timerX;
-        timerX = Stopwatch.createStarted();
-
-        Long2ObjectMap<ScoredIdAccumulator> rows = buildRows(allItems, n_threads);
-        timerX.stop();
-        logger.info("built object in {}",timerX);
-
-        logger.info("Writing Object in rows.tmp");
-        rowsWriter(rows);
-        int size = rows.size();
-        logger.info("{}", size);
+            SimilaritySink sink = createSink(allItems, pool);
+            logger.info("computing similarities with {} worker threads", pool.getParallelism());
+            SimilarityWorker worker = new SimilarityWorker(allItems.toLongArray(), itemSimilarity, buildContext,
+                                                           threshold, neighborStrategy, minCommonUsers,
+                                                           sink, progress);
+            Stopwatch timer;
+            timer = Stopwatch.createStarted();
+            ItemRangeTask.run(pool, nitems, ItemRangeTask.DEFAULT_GRAIN, worker);
+            timer.stop();
+            logger.info("Thread computation done in {}", timer);
 
-        //Get rid of rows to save memory
-        rows = null;
-        Long2ObjectMap<Long2DoubleMap> rows2 = new Long2ObjectOpenHashMap<>(size);
+            progress.finish();
 
-        logger.info("Finishing SimilarityMatrixModel");
-        return new SimilarityMatrixModel(finishRows(rows2));
-    }
+            //Get rid of builContext to save memory
+            buildContext = null;
 
-    private Long2ObjectMap<ScoredIdAccumulator> makeAccumulators(LongSet items) {
-        Long2ObjectMap<ScoredIdAccumulator> rows = new Long2ObjectOpenHashMap<>(items.size());
-        LongIterator iter = items.iterator();
-        while (iter.hasNext()) {
-            long item = iter.nextLong();
-            ScoredIdAccumulator accum;
-            if (modelSize == 0) {
-                accum = new UnlimitedScoredIdAccumulator();
-            } else {
-                accum = new TopNScoredIdAccumulator(modelSize);
-            }
-            rows.put(item, accum);
+            Stopwatch timerX;
+            timerX = Stopwatch.createStarted();
+            rows = sink.finishRows();
+            timerX.stop();
+            logger.info("finished {} rows in {}", rows.size(), timerX);
+        } finally {
+            pool.shutdown();
         }
-        return rows;
-    }
-
-    private Long2ObjectMap<Long2DoubleMap> finishRows(Long2ObjectMap<Long2DoubleMap> results) {
-        try {
-            File toRead = new File("etc/rows.tmp");
-            FileInputStream fis = new FileInputStream(toRead);
-            boolean cont = true;
 
-            try {
-                ObjectInputStream input = new ObjectInputStream(fis);
-                while (cont) {
-                    Object obj = input.readObject();
-                    Long2ObjectMap.Entry<ScoredIdAccumulator> e = (Long2ObjectMap.Entry<ScoredIdAccumulator>)obj;
-                    if(obj != null)
-                        results.put(e.getLongKey(), e.getValue().finishMap());
-                    else
-                        cont = false;
-                }
-            } catch (Exception e){}
-        } catch (Exception e){}
-        return results;
+        logger.info("Finishing SimilarityMatrixModel");
+        return new SimilarityMatrixModel(rows);
     }
 
-    private void rowsWriter(Long2ObjectMap<ScoredIdAccumulator> rows){
-        try {
-            File fileTwo = new File("etc/rows.tmp");
-            FileOutputStream fos = new FileOutputStream(fileTwo);
-            ObjectOutputStream pos = new ObjectOutputStream(fos);
-            for (Long2ObjectMap.Entry<ScoredIdAccumulator> e: rows.long2ObjectEntrySet()) {
-                pos.writeObject(e);
+    /**
+     * Choose where to accumulate similarities.  Truncated models whose rows are estimated to
+     * fit in half of the remaining heap are accumulated in memory; everything else is spilled
+     * to disk and merged back once the build context has been released.
+     */
+    private SimilaritySink createSink(LongSortedSet allItems, ForkJoinPool pool) {
+        if (modelSize > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+            long needed = InMemorySimilaritySink.estimateBytes(allItems.size(), modelSize);
+            if (needed <= available / 2) {
+                logger.info("accumulating model rows in memory (estimated {} MB)", needed >> 20);
+                return new InMemorySimilaritySink(allItems, modelSize);
             }
-            pos.close();
-        }catch(Exception e){
-            System.err.println(e.toString());
-            e.printStackTrace(System.err);
-            System.exit(1);
+            logger.info("model rows need an estimated {} MB of {} MB available, spilling to disk",
+                        needed >> 20, available >> 20);
+        } else {
+            logger.info("model size is unlimited, spilling similarities to disk");
         }
+        return new SpillingSimilaritySink(allItems, modelSize, spillDir, pool);
     }
 
     private ItemItemBuildContext getContext(){
@@ -239,139 +171,78 @@ public class ItemItemModelProvider implements Provider<ItemItemModel> {
         }
         return buildContext;
     }
+}
 
-    private Long2ObjectMap<ScoredIdAccumulator> buildRows(LongSortedSet allItems, int i){
-        Long2ObjectMap<ScoredIdAccumulator> rows = makeAccumulators(allItems);
-        for (int k = 0; k < i; k++) {
-            try {
-                File toRead = new File("etc/similarities"+k+".tmp");
-                FileInputStream fis = new FileInputStream(toRead);
+/**
+ * Computes the similarities for chunks of outer items handed out by an {@link ItemRangeTask}.
+ * Retained similarities are offered to a {@link SimilaritySink}.  For symmetric similarity
+ * functions, each unordered pair of items is computed once and offered to both rows.
+ */
+class SimilarityWorker implements ItemRangeTask.Body {
+    private final long[] items;
+    private final ItemSimilarity itemSimilarity;
+    private final ItemItemBuildContext buildContext;
+    private final Threshold threshold;
+    private final NeighborIterationStrategy neighborStrategy;
+    private final int minCommonUsers;
+    private final SimilaritySink sink;
+    private final ProgressLogger progress;
 
-                Scanner sc = new Scanner(fis);
+    SimilarityWorker(long[] items, ItemSimilarity similarity, ItemItemBuildContext context,
+                     Threshold threshold, NeighborIterationStrategy neighborStrategy,
+                     int minCommonUsers, SimilaritySink sink, ProgressLogger progress) {
+        this.items = items;
+        itemSimilarity = similarity;
+        buildContext = context;
+        this.threshold = threshold;
+        this.neighborStrategy = neighborStrategy;
+        this.minCommonUsers = minCommonUsers;
+        this.sink = sink;
+        this.progress = progress;
+    }
 
-                String currentLine;
-                try {
-                    while (sc.hasNextLine()) {
-                        currentLine = sc.nextLine();
-                        StringTokenizer st = new StringTokenizer(currentLine, ",", false);
-                        rows.get(Long.valueOf(st.nextToken())).put(Long.valueOf(st.nextToken()), Double.valueOf(st.nextToken()));
-                    }
-                }catch (Exception e){
-                    System.err.println(e.toString());
-                    e.printStackTrace(System.err);
-                    System.exit(1);
-                }
-                fis.close();
-            } catch (Exception e) {
-                System.err.println(e.toString());
-                e.printStackTrace(System.err);
-                System.exit(1);
+    @Override
+    public void apply(int lo, int hi) {
+        for (int i = lo; i < hi; i++) {
+            computeRow(items[i]);
+            synchronized (progress) {
+                progress.advance();
             }
         }
-        return rows;
-    }
-}
-
-class SimilarityThread extends Thread {
-    private static volatile ItemSimilarity itemSimilarity;
-    private final LongIterator outer;
-    private static volatile ItemItemBuildContext buildContext;
-    private static volatile Threshold threshold;
-    private static volatile NeighborIterationStrategy neighborStrategy;
-    private static volatile int minCommonUsers;
-    private final int thread_index;
-    private final Object lock = new Object();
-
-    public SimilarityThread(LongIterator Outer, ItemSimilarity Similarity, int i,
-                    ItemItemBuildContext BuildContext, Threshold Threshold, NeighborIterationStrategy NeighborStrategy,
-                    int MinCommonUsers){
-        outer = Outer;
-        itemSimilarity = Similarity;
-        buildContext = BuildContext;
-        threshold = Threshold;
-        neighborStrategy = NeighborStrategy;
-        minCommonUsers = MinCommonUsers;
-        thread_index = i;
     }
 
-    public void run() {
-
-        BufferedWriter bufferedWriter = null;
-        try {
-            File fileTwo = new File("etc/similarities"+thread_index+".tmp");
-            FileOutputStream fos = new FileOutputStream(fileTwo);
-            PrintWriter pw = new PrintWriter(fos);
-            bufferedWriter = new BufferedWriter(pw);
-        }catch(Exception e){
-            System.err.println(e.toString());
-            e.printStackTrace(System.err);
-            System.exit(1);
+    private void computeRow(long itemId1) {
+        SparseVector vec1 = buildContext.itemVector(itemId1);
+        if (vec1.size() < minCommonUsers) {
+            // if it doesn't have enough users, it can't have enough common users
+            return;
         }
-        Stopwatch timer;
-        timer = Stopwatch.createStarted();
-        int inside_items = 0;
-        OUTER:
-        while (outer.hasNext()) {
-            final long itemId1 = outer.nextLong();
-            SparseVector vec1 = buildContext.itemVector(itemId1);
-            if (vec1.size() < minCommonUsers) {
-                // if it doesn't have enough users, it can't have enough common users
-                inside_items++;
-                synchronized (lock) {
-                    ItemItemModelProvider.items_done++;
-                }
-                continue OUTER;
-            }
-
-            LongIterator itemIter = neighborStrategy.neighborIterator(buildContext, itemId1,
-                    itemSimilarity.isSymmetric());
 
-            INNER:
-            while (itemIter.hasNext()) {
-                long itemId2 = itemIter.nextLong();
-                if (itemId1 != itemId2) {
-                    SparseVector vec2 = buildContext.itemVector(itemId2);
-                    if (!LongUtils.hasNCommonItems(vec1.keySet(), vec2.keySet(), minCommonUsers)) {
-                        // items have insufficient users in common, skip them
-                        continue INNER;
-                    }
+        LongIterator itemIter = neighborStrategy.neighborIterator(buildContext, itemId1,
+                                                                  itemSimilarity.isSymmetric());
+
+        INNER:
+        while (itemIter.hasNext()) {
+            long itemId2 = itemIter.nextLong();
+            if (itemId1 != itemId2) {
+                SparseVector vec2 = buildContext.itemVector(itemId2);
+                if (!LongUtils.hasNCommonItems(vec1.keySet(), vec2.keySet(), minCommonUsers)) {
+                    // items have insufficient users in common, skip them
+                    continue INNER;
+                }
 
-                    double sim = itemSimilarity.similarity(itemId1, vec1, itemId2, vec2);
-                    sim = Math.round(sim * 100.0);
-                    sim = sim / 100.0;
-                    if (threshold.retain(sim)) {
-                        if (itemSimilarity.isSymmetric()) {
-                            try {
-                                bufferedWriter.write(itemId2 + "," + itemId1 + "," + sim+"\n");
-                            } catch (Exception e) {
-                                System.err.println(e.toString());
-                                e.printStackTrace(System.err);
-                                System.exit(1);
-                            }
-                        }
+                double sim = itemSimilarity.similarity(itemId1, vec1, itemId2, vec2);
+                sim = Math.round(sim * 100.0);
+                sim = sim / 100.0;
+                if (threshold.retain(sim)) {
+                    // sim(i1, i2) is a neighbor entry of i2, as in LensKit's model builder
+                    sink.put(itemId2, itemId1, sim);
+                    if (itemSimilarity.isSymmetric()) {
+                        // the iterator only returns each unordered pair once, so feed both rows
+                        sink.put(itemId1, itemId2, sim);
                     }
                 }
             }
-            inside_items++;
-            synchronized (lock) {
-                ItemItemModelProvider.items_done++;
-            }
-        }
-        try {
-            timer.stop();
-            FileWriter writer = new FileWriter("etc/BasketRun.log", true);
-            BufferedWriter Writer = new BufferedWriter(writer);
-            Writer.write("Thread "
-                    +thread_index+" computed "
-                    +inside_items+" out of "
-                    +ItemItemModelProvider.nitems+" in "
-                    +timer+"\n");
-            Writer.flush();
-            bufferedWriter.close();
-        } catch (Exception e){
-            System.err.println(e.toString());
-            e.printStackTrace(System.err);
-            System.exit(1);
         }
     }
 }
@@ -0,0 +1,98 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join action that processes a range of item indices.  The range is split in half until
+ * it is no larger than the grain size, so idle workers steal pending chunks from busy ones
+ * instead of waiting on a fixed slice of the item universe.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+class ItemRangeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of items processed by a single leaf task.
+     */
+    static final int DEFAULT_GRAIN = 8;
+
+    /**
+     * The work to do for a chunk of item indices.
+     */
+    interface Body {
+        /**
+         * Process the items with indices in the range {@code [lo, hi)}.
+         * @param lo The first index (inclusive).
+         * @param hi The last index (exclusive).
+         */
+        void apply(int lo, int hi);
+    }
+
+    private final Body body;
+    private final int lo;
+    private final int hi;
+    private final int grain;
+
+    ItemRangeTask(Body body, int lo, int hi, int grain) {
+        this.body = body;
+        this.lo = lo;
+        this.hi = hi;
+        this.grain = Math.max(grain, 1);
+    }
+
+    @Override
+    protected void compute() {
+        if (hi - lo <= grain) {
+            body.apply(lo, hi);
+        } else {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ItemRangeTask(body, lo, mid, grain),
+                      new ItemRangeTask(body, mid, hi, grain));
+        }
+    }
+
+    /**
+     * Create a pool for a model build.
+     * @param nthreads The number of threads; if 0 or less, the number of available processors.
+     * @return The fork/join pool.
+     */
+    static ForkJoinPool createPool(int nthreads) {
+        if (nthreads <= 0) {
+            nthreads = Runtime.getRuntime().availableProcessors();
+        }
+        return new ForkJoinPool(nthreads);
+    }
+
+    /**
+     * Run a body over all item indices in {@code [0, n)} and wait for it to finish.
+     * @param pool The pool to run in.
+     * @param n The number of items.
+     * @param grain The number of items in each leaf chunk.
+     * @param body The work to do.
+     */
+    static void run(ForkJoinPool pool, int n, int grain, Body body) {
+        pool.invoke(new ItemRangeTask(body, 0, n, grain));
+    }
+}
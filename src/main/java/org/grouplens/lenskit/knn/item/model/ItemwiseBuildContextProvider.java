@@ -21,16 +21,17 @@
 package org.lenskit.knn.item.model;
 
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.FluentIterable;
+import it.unimi.dsi.fastutil.HashCommon;
 import it.unimi.dsi.fastutil.longs.*;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import org.lenskit.inject.Transient;
 import org.lenskit.baseline.ItemMeanRatingItemScorer;
+import org.lenskit.knn.item.ModelBuildThreads;
 import org.lenskit.util.io.ObjectStream;
 import org.lenskit.data.dao.ItemDAO;
 import org.lenskit.data.dao.ItemEventDAO;
 import org.lenskit.data.events.Event;
 import org.lenskit.data.ratings.Rating;
-import org.lenskit.data.ratings.Ratings;
 import org.lenskit.data.history.ItemEventCollection;
 import org.grouplens.lenskit.transform.normalize.ItemVectorNormalizer;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
@@ -43,20 +44,34 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Builder for {@link ItemItemBuildContext} that normalizes per-item, not per-user.  More efficient
  * when using e.g. item-based normalization.  Right now it only works for rating data.
  *
+ * <p>Items are read from the DAO in batches, and the items of each batch are normalized in
+ * parallel.  Each worker thread appends the (user, item) pairs of the vectors it builds to its
+ * own buffers, split into partitions by user; once every item is read, the partitions are
+ * merged in parallel into the users' item sets.  The normalizer must therefore be safe to call
+ * from several threads, as the stock normalizers are.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class ItemwiseBuildContextProvider implements Provider<ItemItemBuildContext> {
     private static final Logger logger = LoggerFactory.getLogger(ItemwiseBuildContextProvider.class);
 
+    /**
+     * Number of items read from the DAO before a batch is normalized.
+     */
+    static final int ITEM_BATCH_SIZE = 1024;
+
     private final ItemEventDAO itemEventDAO;
     private final ItemDAO itemDAO;
     private final ItemVectorNormalizer normalizer;
+    private final int nthreads;
 
     /**
      * Construct a new build context provider.
@@ -67,13 +82,16 @@ public class ItemwiseBuildContextProvider implements Provider<ItemItemBuildConte
      *             a {@link org.grouplens.lenskit.transform.normalize.MeanCenteringVectorNormalizer},
      *             then you should use {@link ItemMeanRatingItemScorer}
      *             for the user vector normalization in the scorer).
+     * @param threads The number of threads to normalize with (0 for one per processor).
      */
     @Inject
     public ItemwiseBuildContextProvider(@Transient ItemEventDAO edao, @Transient ItemDAO idao,
-                                        @Transient ItemVectorNormalizer norm) {
+                                        @Transient ItemVectorNormalizer norm,
+                                        @ModelBuildThreads int threads) {
         itemEventDAO = edao;
         itemDAO = idao;
         normalizer = norm;
+        nthreads = threads;
     }
 
     /**
@@ -88,38 +106,42 @@ public class ItemwiseBuildContextProvider implements Provider<ItemItemBuildConte
         logger.debug("using normalizer {}", normalizer);
 
         logger.debug("Building item data");
-        Long2ObjectMap<LongList> userItems = new Long2ObjectOpenHashMap<>(1000);
         Long2ObjectMap<SparseVector> itemVectors = new Long2ObjectOpenHashMap<>(1000);
-        ObjectStream<ItemEventCollection<Event>> itemObjectStream = itemEventDAO.streamEventsByItem();
+        Long2ObjectMap<LongSortedSet> userItemSets;
+        ForkJoinPool pool = ItemRangeTask.createPool(nthreads);
         try {
-            for (ItemEventCollection<Event> item: itemObjectStream) {
-                if (logger.isTraceEnabled()) {
-                    logger.trace("processing {} ratings for item {}", item.size(), item);
+            final int nparts = pool.getParallelism();
+            final List<ItemScratch> workers = new ArrayList<>();
+            ThreadLocal<ItemScratch> scratch = new ThreadLocal<ItemScratch>() {
+                @Override
+                protected ItemScratch initialValue() {
+                    ItemScratch s = new ItemScratch(nparts);
+                    synchronized (workers) {
+                        workers.add(s);
+                    }
+                    return s;
                 }
-                List<Rating> ratings = FluentIterable.from(item)
-                                                     .filter(Rating.class)
-                                                     .toList();
-                MutableSparseVector vector = MutableSparseVector.create(Ratings.itemRatingVector(ratings));
-                normalizer.normalize(item.getItemId(), vector, vector);
-                for (VectorEntry e: vector) {
-                    long user = e.getKey();
-                    LongList uis = userItems.get(user);
-                    if (uis == null) {
-                        // lists are nice and fast, we only see each item once
-                        uis = new LongArrayList();
-                        userItems.put(user, uis);
+            };
+
+            List<ItemEventCollection<Event>> batch = new ArrayList<>(ITEM_BATCH_SIZE);
+            ObjectStream<ItemEventCollection<Event>> itemObjectStream = itemEventDAO.streamEventsByItem();
+            try {
+                for (ItemEventCollection<Event> item: itemObjectStream) {
+                    batch.add(item);
+                    if (batch.size() == ITEM_BATCH_SIZE) {
+                        buildItemVectors(pool, batch, scratch, itemVectors);
+                        batch.clear();
                     }
-                    uis.add(item.getItemId());
                 }
-                itemVectors.put(item.getItemId(), vector.freeze());
+                buildItemVectors(pool, batch, scratch, itemVectors);
+            } finally {
+                itemObjectStream.close();
             }
-        } finally {
-            itemObjectStream.close();
-        }
 
-        Long2ObjectMap<LongSortedSet> userItemSets = new Long2ObjectOpenHashMap<>();
-        for (Long2ObjectMap.Entry<LongList> entry: userItems.long2ObjectEntrySet()) {
-            userItemSets.put(entry.getLongKey(), LongUtils.packedSet(entry.getValue()));
+            logger.debug("Building user data from {} worker buffers", workers.size());
+            userItemSets = mergeUserItems(pool, workers, nparts);
+        } finally {
+            pool.shutdown();
         }
 
         SortedKeyIndex items = SortedKeyIndex.fromCollection(itemVectors.keySet());
@@ -133,4 +155,170 @@ public class ItemwiseBuildContextProvider implements Provider<ItemItemBuildConte
         logger.info("finished build context for {} items in {}", items.size(), timer);
         return new ItemItemBuildContext(items, itemData, userItemSets);
     }
+
+    /**
+     * Build and normalize the vectors of a batch of items in parallel.
+     *
+     * @param pool        The pool to run on.
+     * @param batch       The items' events.
+     * @param scratch     The per-thread working space.
+     * @param itemVectors The map to store the item vectors in.
+     */
+    private void buildItemVectors(ForkJoinPool pool, final List<ItemEventCollection<Event>> batch,
+                                  final ThreadLocal<ItemScratch> scratch,
+                                  Long2ObjectMap<SparseVector> itemVectors) {
+        final SparseVector[] vectors = new SparseVector[batch.size()];
+        ItemRangeTask.run(pool, batch.size(), ItemRangeTask.DEFAULT_GRAIN, new ItemRangeTask.Body() {
+            @Override
+            public void apply(int lo, int hi) {
+                ItemScratch s = scratch.get();
+                for (int i = lo; i < hi; i++) {
+                    vectors[i] = buildItemVector(batch.get(i), s);
+                }
+            }
+        });
+        for (int i = 0; i < vectors.length; i++) {
+            itemVectors.put(batch.get(i).getItemId(), vectors[i]);
+        }
+    }
+
+    /**
+     * Build and normalize an item's rating vector, and record its users in the worker's buffers.
+     */
+    private SparseVector buildItemVector(ItemEventCollection<Event> item, ItemScratch s) {
+        long itemId = item.getItemId();
+        if (logger.isTraceEnabled()) {
+            logger.trace("processing {} ratings for item {}", item.size(), item);
+        }
+        for (Event e: item) {
+            if (e instanceof Rating) {
+                s.offer((Rating) e);
+            }
+        }
+        MutableSparseVector vector = s.ratingVector();
+        normalizer.normalize(itemId, vector, vector);
+        for (VectorEntry e: vector) {
+            s.addUserItem(e.getKey(), itemId);
+        }
+        return vector.freeze();
+    }
+
+    /**
+     * Merge the workers' (user, item) buffers into each user's item set, one partition of the
+     * users at a time.
+     */
+    private static Long2ObjectMap<LongSortedSet> mergeUserItems(ForkJoinPool pool, final List<ItemScratch> workers,
+                                                                final int nparts) {
+        @SuppressWarnings({"rawtypes", "unchecked"})
+        final Long2ObjectMap<LongSortedSet>[] parts = new Long2ObjectMap[nparts];
+        ItemRangeTask.run(pool, nparts, 1, new ItemRangeTask.Body() {
+            @Override
+            public void apply(int lo, int hi) {
+                for (int p = lo; p < hi; p++) {
+                    Long2ObjectMap<LongList> userItems = new Long2ObjectOpenHashMap<>();
+                    for (ItemScratch w: workers) {
+                        LongArrayList users = w.users[p];
+                        LongArrayList items = w.items[p];
+                        for (int k = 0, n = users.size(); k < n; k++) {
+                            long user = users.getLong(k);
+                            LongList uis = userItems.get(user);
+                            if (uis == null) {
+                                // lists are nice and fast, we only see each item once
+                                uis = new LongArrayList();
+                                userItems.put(user, uis);
+                            }
+                            uis.add(items.getLong(k));
+                        }
+                        // release the worker's partition
+                        w.users[p] = null;
+                        w.items[p] = null;
+                    }
+                    Long2ObjectMap<LongSortedSet> sets = new Long2ObjectOpenHashMap<>(userItems.size());
+                    for (Long2ObjectMap.Entry<LongList> entry: userItems.long2ObjectEntrySet()) {
+                        sets.put(entry.getLongKey(), LongUtils.packedSet(entry.getValue()));
+                    }
+                    parts[p] = sets;
+                }
+            }
+        });
+
+        int nusers = 0;
+        for (Long2ObjectMap<LongSortedSet> part: parts) {
+            nusers += part.size();
+        }
+        Long2ObjectMap<LongSortedSet> userItemSets = new Long2ObjectOpenHashMap<>(nusers);
+        for (Long2ObjectMap<LongSortedSet> part: parts) {
+            userItemSets.putAll(part);
+        }
+        return userItemSets;
+    }
+
+    /**
+     * Per-thread working space: the latest rating of each user for the current item, and the
+     * (user, item) pairs of every vector the thread has built, partitioned by user.
+     */
+    private static class ItemScratch {
+        final Long2IntOpenHashMap positions = new Long2IntOpenHashMap();
+        final ObjectArrayList<Rating> latest = new ObjectArrayList<>();
+        final LongArrayList[] users;
+        final LongArrayList[] items;
+
+        ItemScratch(int nparts) {
+            positions.defaultReturnValue(-1);
+            users = new LongArrayList[nparts];
+            items = new LongArrayList[nparts];
+            for (int p = 0; p < nparts; p++) {
+                users[p] = new LongArrayList();
+                items[p] = new LongArrayList();
+            }
+        }
+
+        /**
+         * Offer a rating of the current item.  A user's latest rating replaces their earlier
+         * ones, with ties going to the later one in the stream, as in
+         * {@link org.lenskit.data.ratings.Ratings#itemRatingVector}.
+         */
+        void offer(Rating r) {
+            int pos = positions.get(r.getUserId());
+            if (pos < 0) {
+                positions.put(r.getUserId(), latest.size());
+                latest.add(r);
+            } else if (r.getTimestamp() >= latest.get(pos).getTimestamp()) {
+                latest.set(pos, r);
+            }
+        }
+
+        /**
+         * Get the rating vector of the current item, and reset for the next item.  Users whose
+         * latest rating is an unrate are left out.
+         */
+        MutableSparseVector ratingVector() {
+            int n = 0;
+            for (Rating r: latest) {
+                if (r.hasValue()) {
+                    n++;
+                }
+            }
+            long[] keys = new long[n];
+            double[] values = new double[n];
+            int k = 0;
+            for (Rating r: latest) {
+                if (r.hasValue()) {
+                    keys[k] = r.getUserId();
+                    values[k] = r.getValue();
+                    k++;
+                }
+                // clearing the map would wipe its whole table, which only grows
+                positions.remove(r.getUserId());
+            }
+            latest.clear();
+            return MutableSparseVector.wrapUnsorted(keys, values);
+        }
+
+        void addUserItem(long user, long item) {
+            int p = (int) ((HashCommon.mix(user) & Long.MAX_VALUE) % users.length);
+            users[p].add(user);
+            items[p].add(item);
+        }
+    }
 }
@@ -0,0 +1,295 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.AbstractLong2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import it.unimi.dsi.fastutil.objects.AbstractObjectIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObjectSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
+
+/**
+ * Item-item similarity model backed by a memory-mapped file.
+ *
+ * <p>The file holds the sorted item IDs, the offset of each item's row, and the neighbor
+ * indices and similarities of all rows, in that order.  The model keeps only the item index
+ * on the heap; {@link #getNeighbors(long)} returns a read-only view over the mapped row, so the
+ * operating system pages the matrix in on demand and shares it between processes that map the
+ * same file.  Serializing the model writes only the path of the file, so a recommender engine
+ * containing it loads without reading the matrix.</p>
+ *
+ * <p>The file must stay in place for as long as the model (or any engine containing it) is in
+ * use.  Build it with {@link MappedSimilarityModelProvider}.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+public class MappedSimilarityModel implements Serializable, ItemItemModel {
+    private static final long serialVersionUID = 1L;
+
+    static final int MAGIC = 0x4c4b5349;  // "LKSI"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    /**
+     * Number of entries in each mapped segment of the neighbor arrays, to stay under the 2GB
+     * limit of a single mapping.
+     */
+    static final int SEGMENT_SHIFT = 27;
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final File file;
+    private final transient SortedKeyIndex items;
+    private final transient ByteBuffer offsets;
+    private final transient ByteBuffer[] neighborSegments;
+    private final transient ByteBuffer[] scoreSegments;
+    private final transient long nsims;
+
+    private MappedSimilarityModel(File file, SortedKeyIndex items, ByteBuffer offsets,
+                                  ByteBuffer[] nbrs, ByteBuffer[] scores, long nsims) {
+        this.file = file;
+        this.items = items;
+        this.offsets = offsets;
+        neighborSegments = nbrs;
+        scoreSegments = scores;
+        this.nsims = nsims;
+    }
+
+    /**
+     * Map a similarity matrix file.
+     *
+     * @param file The file, as written by {@link MappedSimilarityModelProvider}.
+     * @return The model.
+     * @throws IOException if the file cannot be read or is not a similarity matrix.
+     */
+    public static MappedSimilarityModel open(File file) throws IOException {
+        file = file.getAbsoluteFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a similarity matrix file");
+            }
+            int nitems = header.getInt(8);
+            long nnz = header.getLong(16);
+
+            long pos = HEADER_SIZE;
+            MappedByteBuffer keyBuf = channel.map(FileChannel.MapMode.READ_ONLY, pos, nitems * 8L);
+            long[] keys = new long[nitems];
+            keyBuf.asLongBuffer().get(keys);
+            pos += nitems * 8L;
+
+            ByteBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, pos, (nitems + 1) * 8L);
+            pos += (nitems + 1) * 8L;
+            ByteBuffer[] nbrs = mapSegments(channel, pos, nnz, 4);
+            pos += align(nnz * 4);
+            ByteBuffer[] scores = mapSegments(channel, pos, nnz, 8);
+
+            return new MappedSimilarityModel(file, SortedKeyIndex.wrap(keys, nitems),
+                                             offsets, nbrs, scores, nnz);
+        }
+    }
+
+    private static ByteBuffer[] mapSegments(FileChannel channel, long start, long count, int width) throws IOException {
+        int nsegs = (int) ((count + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        ByteBuffer[] segs = new ByteBuffer[nsegs];
+        for (int s = 0; s < nsegs; s++) {
+            long first = (long) s << SEGMENT_SHIFT;
+            long n = Math.min(count - first, 1L << SEGMENT_SHIFT);
+            segs[s] = channel.map(FileChannel.MapMode.READ_ONLY, start + first * width, n * width);
+        }
+        return segs;
+    }
+
+    /**
+     * Round a byte count up to a multiple of 8, so that the following section stays aligned.
+     */
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Get the file backing this model.
+     *
+     * @return The similarity matrix file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return items.keySet();
+    }
+
+    @Nonnull
+    @Override
+    public Long2DoubleMap getNeighbors(long item) {
+        int idx = items.tryGetIndex(item);
+        if (idx < 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        long start = offsets.getLong(idx * 8);
+        long end = offsets.getLong((idx + 1) * 8);
+        if (start == end) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        return new Row(start, (int) (end - start));
+    }
+
+    int neighborIndex(long k) {
+        return neighborSegments[(int) (k >>> SEGMENT_SHIFT)].getInt(((int) k & SEGMENT_MASK) << 2);
+    }
+
+    double score(long k) {
+        return scoreSegments[(int) (k >>> SEGMENT_SHIFT)].getDouble(((int) k & SEGMENT_MASK) << 3);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mapped matrix of %d similarities for %d items from %s",
+                             nsims, items.size(), file);
+    }
+
+    private Object writeReplace() {
+        return new SerialProxy(file);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("must use serialization proxy");
+    }
+
+    /**
+     * Serialized form of the model: just the file.
+     */
+    private static class SerialProxy implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final File file;
+
+        SerialProxy(File f) {
+            file = f;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return open(file);
+            } catch (IOException e) {
+                InvalidObjectException ex = new InvalidObjectException("cannot map " + file);
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Read-only view of a mapped row.  Neighbors are stored in item index order, so lookups are
+     * binary searches.
+     */
+    private class Row extends AbstractLong2DoubleMap {
+        private static final long serialVersionUID = 1L;
+        private final long start;
+        private final int size;
+
+        Row(long start, int size) {
+            this.start = start;
+            this.size = size;
+        }
+
+        private int find(long key) {
+            int target = items.tryGetIndex(key);
+            if (target < 0) {
+                return -1;
+            }
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int idx = neighborIndex(start + mid);
+                if (idx < target) {
+                    lo = mid + 1;
+                } else if (idx > target) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean containsKey(long key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public double get(long key) {
+            int i = find(key);
+            return i < 0 ? defaultReturnValue() : score(start + i);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public ObjectSet<Entry> long2DoubleEntrySet() {
+            return new AbstractObjectSet<Entry>() {
+                @Override
+                public ObjectIterator<Entry> iterator() {
+                    return new AbstractObjectIterator<Entry>() {
+                        int pos = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return pos < size;
+                        }
+
+                        @Override
+                        public Entry next() {
+                            if (pos >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            long k = start + pos++;
+                            return new BasicEntry(items.getKey(neighborIndex(k)), score(k));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.MappedModelFile;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.*;
+
+/**
+ * Write an item-item model to a similarity matrix file and map it as a
+ * {@link MappedSimilarityModel}.  The source model is whatever {@link SimilarityMatrixModel}
+ * the configuration builds; it is only used during the build.
+ *
+ * <p>The file is written under a temporary name and renamed into place, so processes that
+ * still map an older version of the file keep a consistent view of it.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class MappedSimilarityModelProvider implements Provider<ItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(MappedSimilarityModelProvider.class);
+
+    private final SimilarityMatrixModel source;
+    private final File file;
+
+    @Inject
+    public MappedSimilarityModelProvider(@Transient SimilarityMatrixModel model,
+                                         @MappedModelFile String path) {
+        source = model;
+        file = new File(path).getAbsoluteFile();
+    }
+
+    @Override
+    public MappedSimilarityModel get() {
+        Stopwatch timer = Stopwatch.createStarted();
+        try {
+            write(source, file);
+            MappedSimilarityModel model = MappedSimilarityModel.open(file);
+            timer.stop();
+            logger.info("wrote {} in {}", model, timer);
+            return model;
+        } catch (IOException e) {
+            throw new RuntimeException("cannot write similarity matrix to " + file, e);
+        }
+    }
+
+    /**
+     * Write a model in the mapped similarity matrix format.
+     *
+     * @param model The model to write.
+     * @param file  The output file.
+     * @throws IOException if there is an error writing the file.
+     */
+    static void write(ItemItemModel model, File file) throws IOException {
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(model.getItemUniverse());
+        int nitems = items.size();
+
+        long[] offsets = new long[nitems + 1];
+        for (int i = 0; i < nitems; i++) {
+            offsets[i + 1] = offsets[i] + model.getNeighbors(items.getKey(i)).size();
+        }
+        long nnz = offsets[nitems];
+
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MappedSimilarityModel.MAGIC);
+            out.writeInt(MappedSimilarityModel.VERSION);
+            out.writeInt(nitems);
+            out.writeInt(0);
+            out.writeLong(nnz);
+            for (int i = 0; i < nitems; i++) {
+                out.writeLong(items.getKey(i));
+            }
+            for (long off: offsets) {
+                out.writeLong(off);
+            }
+
+            // each row's neighbor indices, in index order, then the matching scores
+            IntArrayList row = new IntArrayList();
+            for (int i = 0; i < nitems; i++) {
+                sortedIndices(model.getNeighbors(items.getKey(i)), items, row);
+                for (int k = 0; k < row.size(); k++) {
+                    out.writeInt(row.getInt(k));
+                }
+            }
+            for (long b = nnz * 4; b < MappedSimilarityModel.align(nnz * 4); b++) {
+                out.writeByte(0);
+            }
+            for (int i = 0; i < nitems; i++) {
+                Long2DoubleMap nbrs = model.getNeighbors(items.getKey(i));
+                sortedIndices(nbrs, items, row);
+                for (int k = 0; k < row.size(); k++) {
+                    out.writeDouble(nbrs.get(items.getKey(row.getInt(k))));
+                }
+            }
+        }
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot move " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Get the item indices of a row's neighbors in increasing order.
+     *
+     * @param nbrs  The row.
+     * @param items The item index.
+     * @param out   The list to fill with the indices (cleared first).
+     */
+    private static void sortedIndices(Long2DoubleMap nbrs, SortedKeyIndex items, IntArrayList out) {
+        out.clear();
+        for (long nbr: nbrs.keySet()) {
+            int i = items.tryGetIndex(nbr);
+            if (i < 0) {
+                throw new IllegalStateException("neighbor " + nbr + " is not in the item universe");
+            }
+            out.add(i);
+        }
+        IntArrays.quickSort(out.elements(), 0, out.size());
+    }
+}
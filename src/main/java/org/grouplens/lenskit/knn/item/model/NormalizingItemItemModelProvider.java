@@ -22,7 +22,7 @@ package org.lenskit.knn.item.model;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.Lists;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
@@ -32,6 +32,8 @@ import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.ItemSimilarity;
+import org.lenskit.knn.item.ModelBuildThreads;
+import org.lenskit.util.ProgressLogger;
 import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.keys.SortedKeyIndex;
 import org.slf4j.Logger;
@@ -39,12 +41,20 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Build an item-item CF model from rating data.
  * This builder is more advanced than the standard builder. It allows arbitrary
  * vector truncation and normalization.
+ *
+ * <p>Rows are built in parallel over partitions of the item universe.  Each worker collects a
+ * row's similarities in a per-thread scratch row that only resets the entries the row touched,
+ * and normalizes and truncates the row itself.  A row therefore holds only the similarities
+ * computed for the neighbors the {@link NeighborIterationStrategy} returns, not a zero for
+ * every other item; the normalizer and truncator must be safe to call from several threads,
+ * as the stock ones are.</p>
  */
 public class NormalizingItemItemModelProvider implements Provider<ItemItemModel> {
     private static final Logger logger = LoggerFactory.getLogger(NormalizingItemItemModelProvider.class);
@@ -54,6 +64,7 @@ public class NormalizingItemItemModelProvider implements Provider<ItemItemModel>
     private final ItemVectorNormalizer rowNormalizer;
     private final VectorTruncator truncator;
     private final NeighborIterationStrategy iterationStrategy;
+    private final int nthreads;
 
     /**
      * Construct a normalizing item-item model builder.
@@ -65,18 +76,21 @@ public class NormalizingItemItemModelProvider implements Provider<ItemItemModel>
      *                {@link StandardVectorTruncatorProvider} to get the same threshold and model
      *                size configuration behavior as {@link ItemItemModelProvider}.
      * @param iterStrat The neighbor iteration strategy.
+     * @param threads The number of build threads.
      */
     @Inject
     public NormalizingItemItemModelProvider(@Transient ItemSimilarity sim,
                                             @Transient ItemItemBuildContext context,
                                             @Transient ItemVectorNormalizer rowNorm,
                                             @Transient VectorTruncator trunc,
-                                            @Transient NeighborIterationStrategy iterStrat) {
+                                            @Transient NeighborIterationStrategy iterStrat,
+                                            @ModelBuildThreads int threads) {
         similarity = sim;
         buildContext = context;
         rowNormalizer = rowNorm;
         truncator = trunc;
         iterationStrategy = iterStrat;
+        nthreads = threads;
     }
 
 
@@ -89,45 +103,116 @@ public class NormalizingItemItemModelProvider implements Provider<ItemItemModel>
 
         final int nitems = itemUniverse.size();
 
-        SortedKeyIndex itemDomain = SortedKeyIndex.fromCollection(itemUniverse);
+        final SortedKeyIndex itemDomain = SortedKeyIndex.fromCollection(itemUniverse);
         assert itemDomain.size() == nitems;
-        List<Long2DoubleMap> matrix = Lists.newArrayListWithCapacity(itemDomain.size());
-
-        // working space for accumulating each row (reuse between rows)
-        MutableSparseVector currentRow = MutableSparseVector.create(itemUniverse);
+        final Long2DoubleMap[] matrix = new Long2DoubleMap[nitems];
+
+        final ProgressLogger progress = ProgressLogger.create(logger)
+                                                      .setCount(nitems)
+                                                      .setLabel("item-item model build")
+                                                      .setWindow(50)
+                                                      .start();
+        // working space for accumulating each row (reuse between rows of a thread)
+        final ThreadLocal<RowScratch> scratch = new ThreadLocal<RowScratch>() {
+            @Override
+            protected RowScratch initialValue() {
+                return new RowScratch(nitems);
+            }
+        };
         Stopwatch timer = Stopwatch.createStarted();
 
-        for (int i = 0; i < nitems; i++) {
-            assert matrix.size() == i;
-            final long rowItem = itemDomain.getKey(i);
-            final SparseVector vec1 = buildContext.itemVector(rowItem);
+        ForkJoinPool pool = ItemRangeTask.createPool(nthreads);
+        try {
+            ItemRangeTask.run(pool, nitems, ItemRangeTask.DEFAULT_GRAIN, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    RowScratch row = scratch.get();
+                    for (int i = lo; i < hi; i++) {
+                        matrix[i] = computeRow(itemDomain, i, row);
+                        synchronized (progress) {
+                            progress.advance();
+                        }
+                    }
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        progress.finish();
+
+        timer.stop();
+        logger.info("built model for {} items in {}", nitems, timer);
+
+        return new SimilarityMatrixModel(itemDomain, Arrays.asList(matrix));
+    }
+
+    private Long2DoubleMap computeRow(SortedKeyIndex itemDomain, int i, RowScratch row) {
+        final long rowItem = itemDomain.getKey(i);
+        final SparseVector vec1 = buildContext.itemVector(rowItem);
 
-            // Take advantage of sparsity if we can
-            LongIterator neighbors = iterationStrategy.neighborIterator(buildContext, rowItem, false);
-            currentRow.fill(0);
+        // Take advantage of sparsity if we can
+        LongIterator neighbors = iterationStrategy.neighborIterator(buildContext, rowItem, false);
 
-            // Compute similarities and populate the vector
-            while (neighbors.hasNext()) {
-                final long colItem = neighbors.nextLong();
+        // Compute similarities and populate the row
+        while (neighbors.hasNext()) {
+            final long colItem = neighbors.nextLong();
+            final int j = itemDomain.tryGetIndex(colItem);
+            assert j >= 0;
+            // the current item is not its own neighbor
+            if (j != i) {
                 final SparseVector vec2 = buildContext.itemVector(colItem);
-                assert currentRow.containsKey(colItem);
-                currentRow.set(colItem, similarity.similarity(rowItem, vec1, colItem, vec2));
+                row.set(j, similarity.similarity(rowItem, vec1, colItem, vec2));
             }
+        }
 
-            // Remove the current item (it is not its own neighbor)
-            currentRow.unset(rowItem);
+        // Normalize and truncate the row
+        MutableSparseVector normalized = rowNormalizer.normalize(rowItem, row.finish(itemDomain), null);
+        truncator.truncate(normalized);
 
-            // Normalize and truncate the row
-            MutableSparseVector normalized = rowNormalizer.normalize(rowItem, currentRow, null);
-            truncator.truncate(normalized);
+        return LongUtils.frozenMap(normalized.asMap());
+    }
 
-            matrix.add(LongUtils.frozenMap(normalized.asMap()));
+    /**
+     * The similarities of one row, collected densely by item index before the row is normalized
+     * and truncated; {@link #finish} hands them over as a sparse vector.
+     */
+    private static class RowScratch {
+        final double[] values;
+        final boolean[] present;
+        final int[] touched;
+        int ntouched;
+
+        RowScratch(int n) {
+            values = new double[n];
+            present = new boolean[n];
+            touched = new int[n];
         }
 
-        timer.stop();
-        logger.info("built model for {} items in {}", nitems, timer);
+        void set(int j, double v) {
+            if (!present[j]) {
+                present[j] = true;
+                touched[ntouched++] = j;
+            }
+            values[j] = v;
+        }
 
-        return new SimilarityMatrixModel(itemDomain, matrix);
+        /**
+         * Copy out the row's entries as a sparse vector, and reset the touched entries.
+         */
+        MutableSparseVector finish(SortedKeyIndex itemDomain) {
+            // item indices follow item ID order, so sorting them sorts the keys
+            IntArrays.quickSort(touched, 0, ntouched);
+            long[] keys = new long[ntouched];
+            double[] vals = new double[ntouched];
+            for (int t = 0; t < ntouched; t++) {
+                int j = touched[t];
+                keys[t] = itemDomain.getKey(j);
+                vals[t] = values[j];
+                present[j] = false;
+            }
+            ntouched = 0;
+            return MutableSparseVector.wrap(keys, vals);
+        }
     }
 
     @Override
@@ -136,6 +221,7 @@ public class NormalizingItemItemModelProvider implements Provider<ItemItemModel>
                           .add("similarity", similarity)
                           .add("normalizer", rowNormalizer)
                           .add("truncator", truncator)
+                          .add("threads", nthreads)
                           .toString();
     }
 }
@@ -0,0 +1,381 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.AbstractLong2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap.FastEntrySet;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import it.unimi.dsi.fastutil.objects.AbstractObjectIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObjectSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * Compact item-item similarity model with quantized scores.
+ *
+ * <p>Each row stores its neighbors' item indices in increasing order as variable-length
+ * deltas (7 bits per byte, high bit set on all but the last byte), and their similarities as
+ * 8- or 16-bit integers in units of {@code 1 / scale}.  {@link #getNeighbors(long)} returns a
+ * read-only {@link Row} view that decodes the row as it is read.  A typical row costs 2–3 bytes
+ * per neighbor instead of the 16 bytes plus hash table overhead of a
+ * {@link SimilarityMatrixModel}.</p>
+ *
+ * <p>Scorers walk a row with a reusable {@link Cursor}, which pays a few shifts per neighbor
+ * and allocates nothing.  Lookups by item use a skip index holding the item index and encoded
+ * position of every {@value #SKIP}th neighbor, so they binary-search the skip entries and
+ * decode at most {@value #SKIP} neighbors.  Since the deltas need the rows in item order,
+ * rows cannot also be sorted by score, and scorers keep the most similar neighbors as they go
+ * rather than stopping early as they do with {@link ScoreSortedNeighbors}.</p>
+ *
+ * <p>Build it with {@link QuantizedSimilarityModelProvider}.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+public class QuantizedSimilarityModel implements Serializable, ItemItemModel {
+    private static final long serialVersionUID = 2L;
+    static final int SKIP = 16;
+
+    private final SortedKeyIndex items;
+    private final double scale;
+    private final int[] idOffsets;
+    private final byte[] ids;
+    private final int[] rowStarts;
+    private final byte[] byteScores;
+    private final short[] shortScores;
+    private final int[] skipIndexes;
+    private final int[] skipOffsets;
+
+    /**
+     * Construct a quantized model.  Exactly one of the score arrays is non-null.
+     *
+     * @param items       The item index.
+     * @param scale       The quantization scale.
+     * @param idOffsets   The start of each row's encoded neighbor indices (length {@code nitems + 1}).
+     * @param ids         The delta-encoded neighbor indices.
+     * @param rowStarts   The start of each row's scores (length {@code nitems + 1}).
+     * @param byteScores  The 8-bit scores, or {@code null}.
+     * @param shortScores The 16-bit scores, or {@code null}.
+     */
+    QuantizedSimilarityModel(SortedKeyIndex items, double scale, int[] idOffsets, byte[] ids,
+                             int[] rowStarts, byte[] byteScores, short[] shortScores) {
+        this.items = items;
+        this.scale = scale;
+        this.idOffsets = idOffsets;
+        this.ids = ids;
+        this.rowStarts = rowStarts;
+        this.byteScores = byteScores;
+        this.shortScores = shortScores;
+
+        // index every SKIP-th neighbor (by position in the whole model)
+        int nitems = items.size();
+        int nnz = rowStarts[nitems];
+        skipIndexes = new int[(nnz + SKIP - 1) / SKIP];
+        skipOffsets = new int[skipIndexes.length];
+        Cursor cur = new Cursor();
+        for (int i = 0; i < nitems; i++) {
+            cur.reset(this, i);
+            while (cur.next()) {
+                if (cur.pos % SKIP == 0) {
+                    skipIndexes[cur.pos / SKIP] = cur.index;
+                    skipOffsets[cur.pos / SKIP] = cur.offset;
+                }
+            }
+        }
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return items.keySet();
+    }
+
+    @Nonnull
+    @Override
+    public Long2DoubleMap getNeighbors(long item) {
+        int idx = items.tryGetIndex(item);
+        if (idx < 0 || rowStarts[idx] == rowStarts[idx + 1]) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        return new Row(idx);
+    }
+
+    /**
+     * Get the number of bits used for each score.
+     *
+     * @return 8 or 16.
+     */
+    public int getScoreBits() {
+        return byteScores != null ? 8 : 16;
+    }
+
+    double score(int k) {
+        return (byteScores != null ? byteScores[k] : shortScores[k]) / scale;
+    }
+
+    /**
+     * Find a neighbor in a row.
+     *
+     * @param row    The row.
+     * @param target The neighbor's item index.
+     * @return The neighbor's position, or -1 if it is not in the row.
+     */
+    private int find(int row, int target) {
+        int start = rowStarts[row];
+        int end = rowStarts[row + 1];
+        // the last skip entry in the row at or before the target
+        int lo = (start + SKIP - 1) / SKIP;
+        int hi = (end - 1) / SKIP;
+        int skip = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (skipIndexes[mid] <= target) {
+                skip = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        int pos;
+        int offset;
+        int index;
+        if (skip < 0) {
+            pos = start - 1;
+            offset = idOffsets[row];
+            index = -1;
+        } else {
+            pos = skip * SKIP;
+            offset = skipOffsets[skip];
+            index = skipIndexes[skip];
+        }
+        while (index < target && pos + 1 < end) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = ids[offset++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            index += delta + 1;
+            pos++;
+        }
+        return index == target ? pos : -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("quantized matrix of %d %d-bit similarities for %d items (%d bytes of neighbors)",
+                             rowStarts[rowStarts.length - 1], getScoreBits(), items.size(), ids.length);
+    }
+
+    /**
+     * Reusable sequential decoder for the rows of a quantized model.  After
+     * {@link #reset(Row)}, each call to {@link #next()} moves to the next neighbor in item order.
+     */
+    public static final class Cursor {
+        private QuantizedSimilarityModel model;
+        private int pos;
+        private int end;
+        private int offset;
+        private int index;
+
+        /**
+         * Position the cursor before the first neighbor of a row.
+         *
+         * @param row The row to decode.
+         */
+        public void reset(Row row) {
+            reset(row.model(), row.row);
+        }
+
+        void reset(QuantizedSimilarityModel m, int row) {
+            model = m;
+            pos = m.rowStarts[row] - 1;
+            end = m.rowStarts[row + 1];
+            offset = m.idOffsets[row];
+            index = -1;
+        }
+
+        /**
+         * Move to the next neighbor.
+         *
+         * @return {@code true} if there is a next neighbor, {@code false} at the end of the row.
+         */
+        public boolean next() {
+            if (pos + 1 >= end) {
+                pos = end;
+                return false;
+            }
+            byte[] ids = model.ids;
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = ids[offset++];
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            index += delta + 1;
+            pos++;
+            return true;
+        }
+
+        /**
+         * Get the current neighbor's item ID.
+         */
+        public long getNeighbor() {
+            return model.items.getKey(index);
+        }
+
+        /**
+         * Get the current neighbor's similarity.
+         */
+        public double getScore() {
+            return model.score(pos);
+        }
+    }
+
+    /**
+     * Read-only view of an encoded row.
+     */
+    public final class Row extends AbstractLong2DoubleMap {
+        private static final long serialVersionUID = 1L;
+        private final int row;
+
+        Row(int row) {
+            this.row = row;
+        }
+
+        private QuantizedSimilarityModel model() {
+            return QuantizedSimilarityModel.this;
+        }
+
+        /**
+         * Create a cursor over this row's neighbors.  Scorers that walk many rows should keep
+         * one cursor and {@linkplain Cursor#reset(Row) reset} it instead.
+         *
+         * @return A cursor positioned before the first neighbor.
+         */
+        public Cursor cursor() {
+            Cursor cur = new Cursor();
+            cur.reset(this);
+            return cur;
+        }
+
+        private int find(long key) {
+            int target = items.tryGetIndex(key);
+            return target < 0 ? -1 : QuantizedSimilarityModel.this.find(row, target);
+        }
+
+        @Override
+        public boolean containsKey(long key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public double get(long key) {
+            int k = find(key);
+            return k < 0 ? defaultReturnValue() : score(k);
+        }
+
+        @Override
+        public int size() {
+            return rowStarts[row + 1] - rowStarts[row];
+        }
+
+        @Override
+        public ObjectSet<Entry> long2DoubleEntrySet() {
+            return new EntrySet();
+        }
+
+        /**
+         * Entry set whose fast iterator reuses a single entry.
+         */
+        private class EntrySet extends AbstractObjectSet<Entry> implements FastEntrySet {
+            @Override
+            public ObjectIterator<Entry> iterator() {
+                return new EntryIterator(false);
+            }
+
+            @Override
+            public ObjectIterator<Entry> fastIterator() {
+                return new EntryIterator(true);
+            }
+
+            @Override
+            public int size() {
+                return Row.this.size();
+            }
+        }
+
+        private class EntryIterator extends AbstractObjectIterator<Entry> {
+            private final Cursor cur = cursor();
+            private final boolean reuse;
+            private final MutableEntry entry = new MutableEntry();
+            private boolean ready = cur.next();
+
+            EntryIterator(boolean reuse) {
+                this.reuse = reuse;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return ready;
+            }
+
+            @Override
+            public Entry next() {
+                if (!ready) {
+                    throw new NoSuchElementException();
+                }
+                MutableEntry e = reuse ? entry : new MutableEntry();
+                e.set(cur.getNeighbor(), cur.getScore());
+                ready = cur.next();
+                return e;
+            }
+        }
+    }
+
+    private static final class MutableEntry extends AbstractLong2DoubleMap.BasicEntry {
+        MutableEntry() {
+            super(0, 0);
+        }
+
+        void set(long k, double v) {
+            key = k;
+            value = v;
+        }
+
+        @Override
+        public double setValue(double v) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
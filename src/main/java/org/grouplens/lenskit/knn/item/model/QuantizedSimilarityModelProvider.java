@@ -0,0 +1,152 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.SimilarityQuantizationScale;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Encode an item-item model as a {@link QuantizedSimilarityModel}.  The source model is
+ * whatever {@link SimilarityMatrixModel} the configuration builds; it is only used during the
+ * build.
+ *
+ * <p>Scores are stored in 8 bits when every quantized score fits in a byte, and in 16 bits
+ * otherwise.  Scores outside the 16-bit range are clamped to it.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class QuantizedSimilarityModelProvider implements Provider<ItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(QuantizedSimilarityModelProvider.class);
+
+    private final SimilarityMatrixModel source;
+    private final double scale;
+
+    @Inject
+    public QuantizedSimilarityModelProvider(@Transient SimilarityMatrixModel model,
+                                            @SimilarityQuantizationScale double scale) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("quantization scale must be positive");
+        }
+        source = model;
+        this.scale = scale;
+    }
+
+    @Override
+    public QuantizedSimilarityModel get() {
+        Stopwatch timer = Stopwatch.createStarted();
+        QuantizedSimilarityModel model = quantize(source, scale);
+        timer.stop();
+        logger.info("built {} in {}", model, timer);
+        return model;
+    }
+
+    /**
+     * Quantize a model.
+     *
+     * @param model The model to encode.
+     * @param scale The number of quantization steps per unit of similarity.
+     * @return The quantized model.
+     */
+    static QuantizedSimilarityModel quantize(ItemItemModel model, double scale) {
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(model.getItemUniverse());
+        int nitems = items.size();
+
+        int[] rowStarts = new int[nitems + 1];
+        for (int i = 0; i < nitems; i++) {
+            rowStarts[i + 1] = rowStarts[i] + model.getNeighbors(items.getKey(i)).size();
+        }
+        int nnz = rowStarts[nitems];
+
+        int[] idOffsets = new int[nitems + 1];
+        ByteArrayList ids = new ByteArrayList(nnz * 2);
+        short[] values = new short[nnz];
+        boolean fitsByte = true;
+        int clamped = 0;
+        IntArrayList row = new IntArrayList();
+        int k = 0;
+        for (int i = 0; i < nitems; i++) {
+            Long2DoubleMap nbrs = model.getNeighbors(items.getKey(i));
+            row.clear();
+            for (long nbr: nbrs.keySet()) {
+                int j = items.tryGetIndex(nbr);
+                if (j < 0) {
+                    throw new IllegalStateException("neighbor " + nbr + " is not in the item universe");
+                }
+                row.add(j);
+            }
+            IntArrays.quickSort(row.elements(), 0, row.size());
+
+            int prev = -1;
+            for (int n = 0; n < row.size(); n++) {
+                int j = row.getInt(n);
+                writeVarint(ids, j - prev - 1);
+                prev = j;
+
+                long q = Math.round(nbrs.get(items.getKey(j)) * scale);
+                if (q > Short.MAX_VALUE || q < Short.MIN_VALUE) {
+                    q = q > 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+                    clamped++;
+                }
+                if (q > Byte.MAX_VALUE || q < Byte.MIN_VALUE) {
+                    fitsByte = false;
+                }
+                values[k++] = (short) q;
+            }
+            idOffsets[i + 1] = ids.size();
+        }
+        if (clamped > 0) {
+            logger.warn("{} similarities exceed the 16-bit range at scale {} and were clamped",
+                        clamped, scale);
+        }
+
+        byte[] byteScores = null;
+        short[] shortScores = null;
+        if (fitsByte) {
+            byteScores = new byte[nnz];
+            for (int n = 0; n < nnz; n++) {
+                byteScores[n] = (byte) values[n];
+            }
+        } else {
+            shortScores = values;
+        }
+        return new QuantizedSimilarityModel(items, scale, idOffsets, ids.toByteArray(),
+                                            rowStarts, byteScores, shortScores);
+    }
+
+    private static void writeVarint(ByteArrayList out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.add((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.add((byte) value);
+    }
+}
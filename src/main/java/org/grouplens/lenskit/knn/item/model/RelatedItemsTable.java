@@ -0,0 +1,107 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.inject.Shareable;
+import org.lenskit.results.Results;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precomputed lists of the items most related to each single item.  Each item's list is the
+ * top of what {@link org.lenskit.knn.item.ItemItemItemBasedItemScorer} would recommend for a
+ * basket containing only that item, already sorted by decreasing score.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@DefaultProvider(RelatedItemsTableProvider.class)
+@Shareable
+public class RelatedItemsTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final SortedKeyIndex items;
+    private final int listLength;
+    private final int[] offsets;
+    private final long[] related;
+    private final double[] scores;
+
+    /**
+     * Construct a related-items table.
+     *
+     * @param items      The item index.
+     * @param listLength The number of related items computed for each item.
+     * @param offsets    The start of each item's list (length {@code nitems + 1}).
+     * @param related    The related item IDs, in list order.
+     * @param scores     The related item scores.
+     */
+    RelatedItemsTable(SortedKeyIndex items, int listLength, int[] offsets, long[] related, double[] scores) {
+        this.items = items;
+        this.listLength = listLength;
+        this.offsets = offsets;
+        this.related = related;
+        this.scores = scores;
+    }
+
+    /**
+     * Get the number of related items computed for each item.  Lists may be shorter if an item
+     * has fewer related items.
+     *
+     * @return The list length the table was built with.
+     */
+    public int getListLength() {
+        return listLength;
+    }
+
+    /**
+     * Get the items related to an item.
+     *
+     * @param item The item.
+     * @param n    The maximum number of items to return; must be at most the list length.
+     * @return The related items, sorted by decreasing score, or {@code null} if the item is not
+     *         in the table.
+     */
+    @Nullable
+    public ResultList getRelatedItems(long item, int n) {
+        int idx = items.tryGetIndex(item);
+        if (idx < 0) {
+            return null;
+        }
+        int start = offsets[idx];
+        int end = Math.min(offsets[idx + 1], start + n);
+        List<Result> results = new ArrayList<>(end - start);
+        for (int k = start; k < end; k++) {
+            results.add(Results.create(related[k], scores[k]));
+        }
+        return Results.newResultList(results);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("related-items table of %d items for %d items", related.length, items.size());
+    }
+}
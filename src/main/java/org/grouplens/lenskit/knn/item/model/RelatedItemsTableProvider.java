@@ -0,0 +1,125 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ModelBuildThreads;
+import org.lenskit.knn.item.RelatedItemCount;
+import org.lenskit.util.ScoredIdAccumulator;
+import org.lenskit.util.TopNScoredIdAccumulator;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Build a {@link RelatedItemsTable} from an item-item model.
+ *
+ * <p>With similarity-sum scoring, the score of an item <i>j</i> for a single-item basket
+ * <i>i</i> is the similarity of <i>i</i> in <i>j</i>'s row.  The table for <i>i</i> is
+ * therefore the top of the <i>i</i>th column of the similarity matrix, which this provider
+ * collects by scanning the rows in parallel.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class RelatedItemsTableProvider implements Provider<RelatedItemsTable> {
+    private static final Logger logger = LoggerFactory.getLogger(RelatedItemsTableProvider.class);
+
+    private final ItemItemModel model;
+    private final int listLength;
+    private final int nthreads;
+
+    @Inject
+    public RelatedItemsTableProvider(ItemItemModel model,
+                                     @RelatedItemCount int n,
+                                     @ModelBuildThreads int threads) {
+        this.model = model;
+        listLength = n;
+        nthreads = threads;
+    }
+
+    @Override
+    public RelatedItemsTable get() {
+        if (listLength <= 0) {
+            throw new IllegalArgumentException("related item count must be positive");
+        }
+        Stopwatch timer = Stopwatch.createStarted();
+        final SortedKeyIndex items = SortedKeyIndex.fromCollection(model.getItemUniverse());
+        final int nitems = items.size();
+        final ScoredIdAccumulator[] columns = new ScoredIdAccumulator[nitems];
+        for (int i = 0; i < nitems; i++) {
+            columns[i] = new TopNScoredIdAccumulator(listLength);
+        }
+
+        ForkJoinPool pool = ItemRangeTask.createPool(nthreads);
+        try {
+            ItemRangeTask.run(pool, nitems, ItemRangeTask.DEFAULT_GRAIN, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    for (int j = lo; j < hi; j++) {
+                        long item = items.getKey(j);
+                        for (Long2DoubleMap.Entry e: model.getNeighbors(item).long2DoubleEntrySet()) {
+                            int i = items.tryGetIndex(e.getLongKey());
+                            if (i < 0 || i == j) {
+                                continue;
+                            }
+                            ScoredIdAccumulator acc = columns[i];
+                            synchronized (acc) {
+                                acc.put(item, e.getDoubleValue());
+                            }
+                        }
+                    }
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        int[] offsets = new int[nitems + 1];
+        for (int i = 0; i < nitems; i++) {
+            offsets[i + 1] = offsets[i] + columns[i].size();
+        }
+        long[] related = new long[offsets[nitems]];
+        double[] scores = new double[offsets[nitems]];
+        for (int i = 0; i < nitems; i++) {
+            List<ScoredId> list = columns[i].finish();
+            columns[i] = null;
+            int k = offsets[i];
+            for (ScoredId id: list) {
+                related[k] = id.getId();
+                scores[k] = id.getScore();
+                k++;
+            }
+        }
+
+        RelatedItemsTable table = new RelatedItemsTable(items, listLength, offsets, related, scores);
+        timer.stop();
+        logger.info("built {} in {}", table, timer);
+        return table;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.longs.AbstractLong2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.objects.AbstractObjectIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObjectSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+
+import java.io.Serializable;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable neighbor row stored as parallel arrays sorted by decreasing similarity (ties by
+ * increasing item ID).  Iteration follows that order, and lookups by item binary-search a
+ * permutation of the row sorted by ID.
+ *
+ * <p>Because the strongest neighbors come first, the {@code k} most similar neighbors in a
+ * reference set are the first {@code k} found by a scan over the ranks, so the item-item
+ * scorers stop there instead of offering every neighbor to a top-N heap.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class ScoreSortedNeighbors extends AbstractLong2DoubleMap implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long[] ids;
+    private final double[] scores;
+    private final int[] byId;
+
+    private ScoreSortedNeighbors(long[] ids, double[] scores, int[] byId) {
+        this.ids = ids;
+        this.scores = scores;
+        this.byId = byId;
+    }
+
+    /**
+     * Create a score-sorted copy of a neighbor row.
+     *
+     * @param row The row.
+     * @return The sorted row, or the row itself if it is already a {@code ScoreSortedNeighbors}.
+     */
+    public static Long2DoubleMap create(Long2DoubleMap row) {
+        if (row instanceof ScoreSortedNeighbors) {
+            return row;
+        }
+        int n = row.size();
+        if (n == 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        final long[] keys = new long[n];
+        final double[] vals = new double[n];
+        int k = 0;
+        for (Long2DoubleMap.Entry e: row.long2DoubleEntrySet()) {
+            keys[k] = e.getLongKey();
+            vals[k] = e.getDoubleValue();
+            k++;
+        }
+
+        int[] order = identity(n);
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                int c = Double.compare(vals[b], vals[a]);
+                return c != 0 ? c : Long.compare(keys[a], keys[b]);
+            }
+        });
+        final long[] ids = new long[n];
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = keys[order[i]];
+            scores[i] = vals[order[i]];
+        }
+
+        int[] byId = identity(n);
+        IntArrays.quickSort(byId, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(ids[a], ids[b]);
+            }
+        });
+        return new ScoreSortedNeighbors(ids, scores, byId);
+    }
+
+    private static int[] identity(int n) {
+        int[] a = new int[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i;
+        }
+        return a;
+    }
+
+    /**
+     * Get the neighbor at a rank.
+     *
+     * @param rank The rank (0 is the most similar neighbor).
+     * @return The neighbor's item ID.
+     */
+    public long getNeighbor(int rank) {
+        return ids[rank];
+    }
+
+    /**
+     * Get the similarity at a rank.
+     *
+     * @param rank The rank (0 is the most similar neighbor).
+     * @return The neighbor's similarity.
+     */
+    public double getScore(int rank) {
+        return scores[rank];
+    }
+
+    private int find(long key) {
+        int lo = 0;
+        int hi = byId.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long k = ids[byId[mid]];
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return byId[mid];
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public double get(long key) {
+        int r = find(key);
+        return r < 0 ? defaultReturnValue() : scores[r];
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public ObjectSet<Entry> long2DoubleEntrySet() {
+        return new AbstractObjectSet<Entry>() {
+            @Override
+            public ObjectIterator<Entry> iterator() {
+                return new AbstractObjectIterator<Entry>() {
+                    int pos = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return pos < ids.length;
+                    }
+
+                    @Override
+                    public Entry next() {
+                        if (pos >= ids.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int r = pos++;
+                        return new BasicEntry(ids[r], scores[r]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+    }
+}
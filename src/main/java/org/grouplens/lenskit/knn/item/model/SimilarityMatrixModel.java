@@ -28,7 +28,6 @@ import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.api.ResultList;
 import org.lenskit.inject.Shareable;
 import org.lenskit.results.Results;
-import org.lenskit.util.collections.LongUtils;
 import org.lenskit.util.keys.SortedKeyIndex;
 
 import javax.annotation.Nonnull;
@@ -44,6 +43,9 @@ import java.util.Map;
  * should use the same normalizations used by the builder to make use of the
  * similarity scores.
  *
+ * <p>Each neighborhood is stored as a {@link ScoreSortedNeighbors}, so iterating it visits the
+ * neighbors in decreasing order of similarity.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  * @since 0.10
  */
@@ -66,13 +68,17 @@ public class SimilarityMatrixModel implements Serializable, ItemItemModel {
     @Deprecated
     public SimilarityMatrixModel(SortedKeyIndex items, List<Long2DoubleMap> nbrs) {
         itemDomain = items;
-        neighborhoods = ImmutableList.copyOf(nbrs);
+        ImmutableList.Builder<Long2DoubleMap> neighbors = ImmutableList.builder();
+        for (Long2DoubleMap row: nbrs) {
+            neighbors.add(ScoreSortedNeighbors.create(row));
+        }
+        neighborhoods = neighbors.build();
     }
 
     /**
      * Construct a new item-item model.
      *
-     * @param nbrs  The item neighborhoods.  The item neighborhood lists are not copied.
+     * @param nbrs  The item neighborhoods.  They are copied into score-sorted rows.
      */
     public SimilarityMatrixModel(Map<Long,Long2DoubleMap> nbrs) {
         itemDomain = SortedKeyIndex.fromCollection(nbrs.keySet());
@@ -80,7 +86,7 @@ public class SimilarityMatrixModel implements Serializable, ItemItemModel {
         assert n == nbrs.size();
         ImmutableList.Builder<Long2DoubleMap> neighbors = ImmutableList.builder();
         for (int i = 0; i < n; i++) {
-            neighbors.add(LongUtils.frozenMap(nbrs.get(itemDomain.getKey(i))));
+            neighbors.add(ScoreSortedNeighbors.create(nbrs.get(itemDomain.getKey(i))));
         }
         neighborhoods = neighbors.build();
     }
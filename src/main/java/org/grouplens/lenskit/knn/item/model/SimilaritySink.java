@@ -0,0 +1,50 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+
+/**
+ * Destination for the similarities computed during an item-item model build.  Similarity
+ * workers offer each retained similarity to the sink, which accumulates the model rows.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ * @see ItemItemModelProvider
+ */
+interface SimilaritySink {
+    /**
+     * Offer a similarity to a row of the model.  This method is called concurrently by
+     * the build workers.
+     *
+     * @param row      The item whose row receives the similarity.
+     * @param neighbor The neighbor item.
+     * @param sim      The similarity.
+     */
+    void put(long row, long neighbor, double sim);
+
+    /**
+     * Finish the model rows.  Called once, after all similarities have been offered.
+     *
+     * @return The truncated rows of the similarity matrix.
+     */
+    Long2ObjectMap<Long2DoubleMap> finishRows();
+}
@@ -0,0 +1,526 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.*;
+import org.lenskit.util.ScoredIdAccumulator;
+import org.lenskit.util.TopNScoredIdAccumulator;
+import org.lenskit.util.UnlimitedScoredIdAccumulator;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Similarity sink that spills similarities to disk for models that do not fit in memory.
+ *
+ * <p>Each build thread buffers fixed-width binary {@code (row, neighbor, similarity)} triples,
+ * using dense item indices.  When a buffer fills up, it is sorted and written as a <em>run</em>:
+ * one compressed segment per partition of the row index range.  The rows are rebuilt after the
+ * build context has been released by merging, in parallel for each partition, the corresponding
+ * segments of all runs into row accumulators.  The spill directory is removed afterwards.</p>
+ *
+ * <p>Every run being merged holds an open file and a read buffer, and the pool merges several
+ * groups (or partitions) at the same time, so the fan-in is a budget for all of them: each merge
+ * takes at most the fan-in divided by the pool's parallelism (but at least 2) runs, keeping the
+ * open segment files near {@link #DEFAULT_MERGE_FAN_IN} however many threads the pool has.
+ * When there are more runs, groups of them are first merged into longer runs, in as many passes
+ * as it takes.</p>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+class SpillingSimilaritySink implements SimilaritySink {
+    private static final Logger logger = LoggerFactory.getLogger(SpillingSimilaritySink.class);
+    /**
+     * Number of triples buffered per thread before a run is written.
+     */
+    static final int DEFAULT_RUN_SIZE = 1 << 18;
+    /**
+     * Maximum number of run segments open at once, across all concurrent merges.
+     */
+    static final int DEFAULT_MERGE_FAN_IN = 64;
+    /**
+     * Size of a triple in a run segment, in bytes.
+     */
+    private static final int TRIPLE_BYTES = 16;
+
+    private final SortedKeyIndex items;
+    private final int modelSize;
+    private final ForkJoinPool pool;
+    private final int npartitions;
+    private final int runSize;
+    // runs merged at once by one merge task
+    private final int fanIn;
+    private final Path spillDir;
+    private final List<RunBuffer> buffers = new ArrayList<>();
+    private final List<Run> runs = new ArrayList<>();
+    private final AtomicInteger runCount = new AtomicInteger();
+    private final ThreadLocal<RunBuffer> localBuffer = new ThreadLocal<RunBuffer>() {
+        @Override
+        protected RunBuffer initialValue() {
+            RunBuffer buf = new RunBuffer(runSize);
+            synchronized (buffers) {
+                buffers.add(buf);
+            }
+            return buf;
+        }
+    };
+
+    /**
+     * Create a spilling sink.
+     * @param universe The item universe.
+     * @param size The model size (0 for unlimited).
+     * @param dir The directory to spill into, or {@code null} for the system temporary directory.
+     * @param pool The pool to merge runs with.
+     */
+    SpillingSimilaritySink(LongSortedSet universe, int size, File dir, ForkJoinPool pool) {
+        this(universe, size, dir, pool, DEFAULT_RUN_SIZE, DEFAULT_MERGE_FAN_IN);
+    }
+
+    /**
+     * Create a spilling sink with explicit run and merge sizes.
+     * @param universe The item universe.
+     * @param size The model size (0 for unlimited).
+     * @param dir The directory to spill into, or {@code null} for the system temporary directory.
+     * @param pool The pool to merge runs with.
+     * @param runSize The number of triples buffered per thread before a run is written.
+     * @param fanIn The maximum number of run segments open at once across concurrent merges
+     *              (at least 2).
+     */
+    SpillingSimilaritySink(LongSortedSet universe, int size, File dir, ForkJoinPool pool,
+                           int runSize, int fanIn) {
+        if (runSize <= 0 || fanIn < 2) {
+            throw new IllegalArgumentException("invalid run size or merge fan-in");
+        }
+        items = SortedKeyIndex.fromCollection(universe);
+        modelSize = size;
+        this.pool = pool;
+        this.runSize = runSize;
+        // every pool thread may be merging at once
+        this.fanIn = Math.max(2, fanIn / pool.getParallelism());
+        npartitions = Math.max(1, Math.min(items.size(), pool.getParallelism() * 4));
+        try {
+            if (dir == null) {
+                spillDir = Files.createTempDirectory("item-item-spill");
+            } else {
+                Files.createDirectories(dir.toPath());
+                spillDir = Files.createTempDirectory(dir.toPath(), "item-item-spill");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot create spill directory", e);
+        }
+        logger.info("spilling similarities to {}", spillDir);
+    }
+
+    @Override
+    public void put(long row, long neighbor, double sim) {
+        RunBuffer buf = localBuffer.get();
+        buf.add(items.getIndex(row), items.getIndex(neighbor), sim);
+        if (buf.size == buf.keys.length) {
+            writeRun(buf);
+        }
+    }
+
+    @Override
+    public Long2ObjectMap<Long2DoubleMap> finishRows() {
+        try {
+            synchronized (buffers) {
+                for (RunBuffer buf: buffers) {
+                    if (buf.size > 0) {
+                        writeRun(buf);
+                    }
+                }
+                buffers.clear();
+            }
+            long total = 0;
+            for (Run run: runs) {
+                total += run.size;
+            }
+            logger.info("merging {} runs with {} similarities in {} partitions",
+                        runs.size(), total, npartitions);
+            while (runs.size() > fanIn) {
+                mergePass();
+            }
+
+            final Long2DoubleMap[] rows = new Long2DoubleMap[items.size()];
+            ItemRangeTask.run(pool, npartitions, 1, new ItemRangeTask.Body() {
+                @Override
+                public void apply(int lo, int hi) {
+                    for (int p = lo; p < hi; p++) {
+                        mergePartition(p, rows);
+                    }
+                }
+            });
+
+            Long2ObjectMap<Long2DoubleMap> results = new Long2ObjectOpenHashMap<>(rows.length);
+            for (int i = 0; i < rows.length; i++) {
+                results.put(items.getKey(i), rows[i] != null ? rows[i] : Long2DoubleMaps.EMPTY_MAP);
+            }
+            return results;
+        } finally {
+            deleteSpill();
+        }
+    }
+
+    /**
+     * Get the first row index of a partition.
+     */
+    private int partitionStart(int p) {
+        return (int) ((long) items.size() * p / npartitions);
+    }
+
+    private ScoredIdAccumulator newAccumulator() {
+        if (modelSize == 0) {
+            return new UnlimitedScoredIdAccumulator();
+        } else {
+            return new TopNScoredIdAccumulator(modelSize);
+        }
+    }
+
+    /**
+     * Sort a buffer and write it out as a run.
+     */
+    private void writeRun(RunBuffer buf) {
+        LongArrays.radixSort(buf.keys, buf.values, 0, buf.size);
+        Run run = newRun();
+        try (FileOutputStream out = new FileOutputStream(run.file)) {
+            int pos = 0;
+            for (int p = 0; p < npartitions; p++) {
+                run.offsets[p] = out.getChannel().position();
+                long end = (long) partitionStart(p + 1) << 32;
+                int start = pos;
+                while (pos < buf.size && buf.keys[pos] < end) {
+                    pos++;
+                }
+                run.counts[p] = pos - start;
+                if (pos > start) {
+                    SegmentWriter segment = new SegmentWriter(out);
+                    try {
+                        for (int i = start; i < pos; i++) {
+                            long key = buf.keys[i];
+                            segment.write((int) (key >>> 32), (int) key, buf.values[i]);
+                        }
+                        segment.finish();
+                    } finally {
+                        segment.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot write spill run " + run.file, e);
+        }
+        run.size = buf.size;
+        buf.size = 0;
+        synchronized (runs) {
+            runs.add(run);
+        }
+    }
+
+    private Run newRun() {
+        File file = spillDir.resolve("run" + runCount.getAndIncrement() + ".bin").toFile();
+        return new Run(file, npartitions);
+    }
+
+    /**
+     * Merge the runs, in groups of at most the per-merge fan-in, into fewer, longer runs.
+     */
+    private void mergePass() {
+        final List<Run> inputs = new ArrayList<>(runs);
+        final int ngroups = (inputs.size() + fanIn - 1) / fanIn;
+        logger.debug("merging {} runs into {}", inputs.size(), ngroups);
+        final Run[] outputs = new Run[ngroups];
+        ItemRangeTask.run(pool, ngroups, 1, new ItemRangeTask.Body() {
+            @Override
+            public void apply(int lo, int hi) {
+                for (int g = lo; g < hi; g++) {
+                    List<Run> group = inputs.subList(g * fanIn, Math.min((g + 1) * fanIn, inputs.size()));
+                    outputs[g] = mergeRuns(group);
+                }
+            }
+        });
+        runs.clear();
+        for (Run run: outputs) {
+            runs.add(run);
+        }
+        for (Run run: inputs) {
+            if (!run.file.delete()) {
+                logger.warn("could not delete spill file {}", run.file);
+            }
+        }
+    }
+
+    /**
+     * Merge a group of runs into a single run, one partition at a time.
+     */
+    private Run mergeRuns(List<Run> group) {
+        Run merged = newRun();
+        try (FileOutputStream out = new FileOutputStream(merged.file)) {
+            for (int p = 0; p < npartitions; p++) {
+                merged.offsets[p] = out.getChannel().position();
+                PriorityQueue<SegmentCursor> queue = openSegments(group, p);
+                try {
+                    if (queue.isEmpty()) {
+                        continue;
+                    }
+                    SegmentWriter segment = new SegmentWriter(out);
+                    try {
+                        while (!queue.isEmpty()) {
+                            SegmentCursor cur = queue.poll();
+                            segment.write(cur.row, cur.column, Double.doubleToRawLongBits(cur.sim));
+                            merged.counts[p] += 1;
+                            if (cur.advance()) {
+                                queue.add(cur);
+                            } else {
+                                cur.close();
+                            }
+                        }
+                        segment.finish();
+                    } finally {
+                        segment.release();
+                    }
+                } finally {
+                    for (SegmentCursor cur: queue) {
+                        cur.close();
+                    }
+                }
+                merged.size += merged.counts[p];
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot merge spill runs into " + merged.file, e);
+        }
+        return merged;
+    }
+
+    /**
+     * Open a cursor on the segment of a partition in each of a group of runs.
+     *
+     * @return The cursors of the non-empty segments, positioned on their first triple.
+     */
+    private static PriorityQueue<SegmentCursor> openSegments(List<Run> group, int p) throws IOException {
+        PriorityQueue<SegmentCursor> queue = new PriorityQueue<>();
+        try {
+            for (Run run: group) {
+                if (run.counts[p] > 0) {
+                    SegmentCursor cur = new SegmentCursor(run, p);
+                    try {
+                        cur.advance();
+                    } catch (IOException e) {
+                        cur.close();
+                        throw e;
+                    }
+                    queue.add(cur);
+                }
+            }
+        } catch (IOException e) {
+            for (SegmentCursor cur: queue) {
+                cur.close();
+            }
+            throw e;
+        }
+        return queue;
+    }
+
+    /**
+     * Merge the segments of one partition from every run into finished rows.
+     */
+    private void mergePartition(int p, Long2DoubleMap[] rows) {
+        PriorityQueue<SegmentCursor> queue = new PriorityQueue<>();
+        try {
+            queue = openSegments(runs, p);
+
+            ScoredIdAccumulator acc = newAccumulator();
+            int currentRow = -1;
+            while (!queue.isEmpty()) {
+                SegmentCursor cur = queue.poll();
+                if (cur.row != currentRow) {
+                    if (currentRow >= 0) {
+                        rows[currentRow] = acc.finishMap();
+                    }
+                    currentRow = cur.row;
+                }
+                acc.put(items.getKey(cur.column), cur.sim);
+                if (cur.advance()) {
+                    queue.add(cur);
+                } else {
+                    cur.close();
+                }
+            }
+            if (currentRow >= 0) {
+                rows[currentRow] = acc.finishMap();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("cannot read spill runs", e);
+        } finally {
+            for (SegmentCursor cur: queue) {
+                cur.close();
+            }
+        }
+    }
+
+    private void deleteSpill() {
+        runs.clear();
+        File[] files = spillDir.toFile().listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (!file.delete()) {
+                    logger.warn("could not delete spill file {}", file);
+                }
+            }
+        }
+        try {
+            Files.deleteIfExists(spillDir);
+        } catch (IOException e) {
+            logger.warn("could not delete spill directory {}", spillDir, e);
+        }
+    }
+
+    /**
+     * Per-thread buffer of triples.  The key packs the row and neighbor indices so that
+     * sorting orders triples by row; the value holds the similarity bits.
+     */
+    private static class RunBuffer {
+        final long[] keys;
+        final long[] values;
+        int size;
+
+        RunBuffer(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+        }
+
+        void add(int row, int col, double sim) {
+            keys[size] = ((long) row << 32) | col;
+            values[size] = Double.doubleToRawLongBits(sim);
+            size++;
+        }
+    }
+
+    /**
+     * A sorted run on disk, with the offset and length of each partition segment.
+     */
+    private static class Run {
+        final File file;
+        final long[] offsets;
+        final long[] counts;
+        long size;
+
+        Run(File f, int nparts) {
+            file = f;
+            offsets = new long[nparts];
+            counts = new long[nparts];
+        }
+    }
+
+    /**
+     * Writer for one compressed segment of a run file.  The file stays open for the next
+     * segment once the segment is finished.
+     */
+    private static class SegmentWriter {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final DeflaterOutputStream zout;
+        private final DataOutputStream data;
+
+        SegmentWriter(final FileOutputStream out) {
+            zout = new DeflaterOutputStream(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    // the run file stays open for the next segment
+                }
+            }, deflater, 1 << 16);
+            data = new DataOutputStream(new BufferedOutputStream(zout, 1 << 16));
+        }
+
+        void write(int row, int column, long simBits) throws IOException {
+            data.writeInt(row);
+            data.writeInt(column);
+            data.writeLong(simBits);
+        }
+
+        void finish() throws IOException {
+            data.flush();
+            zout.finish();
+        }
+
+        void release() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Cursor over the triples of one run segment.
+     */
+    private static class SegmentCursor implements Comparable<SegmentCursor> {
+        private final FileInputStream file;
+        private final DataInputStream input;
+        private long remaining;
+        int row;
+        int column;
+        double sim;
+
+        SegmentCursor(Run run, int p) throws IOException {
+            file = new FileInputStream(run.file);
+            file.getChannel().position(run.offsets[p]);
+            input = new DataInputStream(new BufferedInputStream(new InflaterInputStream(file),
+                                                                TRIPLE_BYTES * 4096));
+            remaining = run.counts[p];
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            row = input.readInt();
+            column = input.readInt();
+            sim = Double.longBitsToDouble(input.readLong());
+            return true;
+        }
+
+        void close() {
+            try {
+                input.close();
+            } catch (IOException e) {
+                logger.warn("error closing spill run", e);
+            }
+        }
+
+        @Override
+        public int compareTo(SegmentCursor o) {
+            return Integer.compare(row, o.row);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import java.util.Arrays;
+
+/**
+ * Visited marks for the items of a universe, by item index.  An item is visited if its stamp
+ * equals the current generation, so starting a new iteration only bumps the generation instead
+ * of clearing the marks.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+class VisitedItems {
+    final int[] stamps;
+    private int generation;
+
+    VisitedItems(int n) {
+        stamps = new int[n];
+    }
+
+    /**
+     * Forget every mark.
+     */
+    void reset() {
+        generation += 1;
+        if (generation == 0) {
+            // wrapped around, old stamps could collide with new generations
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Mark an item as visited.
+     * @param idx The item index.
+     * @return {@code true} if the item was not already visited.
+     */
+    boolean mark(int idx) {
+        if (stamps[idx] == generation) {
+            return false;
+        }
+        stamps[idx] = generation;
+        return true;
+    }
+}
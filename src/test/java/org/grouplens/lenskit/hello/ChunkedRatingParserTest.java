@@ -0,0 +1,144 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class ChunkedRatingParserTest {
+    /**
+     * Chunk sizes to parse with; the small ones put chunk boundaries on every line.
+     */
+    private static final long[] CHUNK_SIZES = {1, 2, 3, 5, 8, 13, 64, ChunkedRatingParser.CHUNK_SIZE};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String text) throws IOException {
+        File file = folder.newFile();
+        Files.write(text, file, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    /**
+     * Check that the chunked parser agrees with the sequential one at every chunk size.
+     */
+    private void assertSameParse(String text, boolean header) throws IOException {
+        File file = write(text);
+        RatingsCache.RatingColumns expected = RatingsCache.RatingColumns.parse(file, ",", header);
+        for (long size: CHUNK_SIZES) {
+            RatingsCache.RatingColumns cols = new ChunkedRatingParser(file, (byte) ',', header, 3, size).parse();
+            String msg = "chunk size " + size;
+            assertEquals(msg, expected.users, cols.users);
+            assertEquals(msg, expected.items, cols.items);
+            assertEquals(msg, expected.values, cols.values);
+            assertEquals(msg, expected.timestamps, cols.timestamps);
+        }
+    }
+
+    /**
+     * Check that both parsers reject a file with the same kind of exception.
+     */
+    private void assertBothReject(String text, Class<? extends RuntimeException> type) throws IOException {
+        File file = write(text);
+        try {
+            RatingsCache.RatingColumns.parse(file, ",", false);
+            fail("sequential parse accepted " + text);
+        } catch (RuntimeException e) {
+            assertTrue(e.toString(), type.isInstance(e));
+        }
+        for (long size: CHUNK_SIZES) {
+            try {
+                new ChunkedRatingParser(file, (byte) ',', false, 3, size).parse();
+                fail("chunked parse accepted " + text + " at chunk size " + size);
+            } catch (RuntimeException e) {
+                assertTrue(e.toString(), type.isInstance(e));
+            }
+        }
+    }
+
+    @Test
+    public void testPlainLines() throws IOException {
+        assertSameParse("1,10,3.5,100\n2,20,4,200\n2,30,0.25,300\n", false);
+    }
+
+    @Test
+    public void testNoFinalNewline() throws IOException {
+        assertSameParse("1,10,3.5,100\n2,20,4,200", false);
+    }
+
+    @Test
+    public void testCrLf() throws IOException {
+        assertSameParse("1,10,3.5,100\r\n2,20,4,200\r\n\r\n3,30,5\r\n", false);
+    }
+
+    @Test
+    public void testHeader() throws IOException {
+        assertSameParse("user,item,rating,timestamp\n1,10,3.5,100\n2,20,4,200\n", true);
+        assertSameParse("user,item,rating,timestamp\r\n1,10,3.5,100\r\n", true);
+    }
+
+    @Test
+    public void testMissingTimestamp() throws IOException {
+        assertSameParse("1,10,3.5\n2,20,4,\n3,30,5,300\n", false);
+    }
+
+    @Test
+    public void testBlankLinesAndSpaces() throws IOException {
+        assertSameParse("\n 1 , 10 , 3.5 , 100 \n\n\t2,20,-4,\t200\n", false);
+    }
+
+    @Test
+    public void testNumberForms() throws IOException {
+        assertSameParse("-1,+10,.5\n2,20,5.\n3,30,1e-3\n4,40,-0\n"
+                                + "9223372036854775807,-9223372036854775808,0.1234567890123456789\n", false);
+    }
+
+    @Test
+    public void testShortLine() throws IOException {
+        assertBothReject("1,10,3.5\n2,20\n", IllegalArgumentException.class);
+        assertBothReject("1,10,\n", IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testBadNumbers() throws IOException {
+        assertBothReject("1,x,3.5\n", NumberFormatException.class);
+        assertBothReject("1,10,-\n", NumberFormatException.class);
+        assertBothReject("1,10,.\n", NumberFormatException.class);
+        assertBothReject("1,10,3.5,1x\n", NumberFormatException.class);
+    }
+
+    @Test
+    public void testOverflowingIds() throws IOException {
+        assertBothReject("12345678901234567890,10,3.5\n", NumberFormatException.class);
+        assertBothReject("9223372036854775808,10,3.5\n", NumberFormatException.class);
+        assertBothReject("1,-9223372036854775809,3.5\n", NumberFormatException.class);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class QueryServerTest {
+    @Test
+    public void testSplitPlainNames() {
+        assertEquals(Arrays.asList("com.app1", "com.app2"),
+                     QueryServer.splitNames("com.app1, com.app2"));
+    }
+
+    @Test
+    public void testSplitKeepsQuotes() {
+        assertEquals(Arrays.asList("\"com.app1\"", "\"com.app2\""),
+                     QueryServer.splitNames("\"com.app1\",\"com.app2\""));
+    }
+
+    @Test
+    public void testSplitQuotedComma() {
+        assertEquals(Arrays.asList("\"Tom, Jerry\"", "\"com.app2\""),
+                     QueryServer.splitNames("\"Tom, Jerry\",\"com.app2\""));
+        assertEquals("Tom, Jerry", HelloLenskit.unquote(QueryServer.splitNames("\"Tom, Jerry\"").get(0)));
+    }
+
+    @Test
+    public void testSplitUnterminatedQuote() {
+        assertEquals(Arrays.asList("com.app1", "\"Tom, Jerry"),
+                     QueryServer.splitNames("com.app1,\"Tom, Jerry"));
+    }
+
+    @Test
+    public void testSplitEmpty() {
+        assertEquals(Arrays.asList(""), QueryServer.splitNames(""));
+    }
+}
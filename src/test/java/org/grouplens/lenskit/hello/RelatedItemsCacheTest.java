@@ -0,0 +1,242 @@
+/*
+ * Copyright 2011 University of Minnesota
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.grouplens.lenskit.hello;
+
+import org.junit.Test;
+import org.lenskit.api.ItemBasedItemRecommender;
+import org.lenskit.api.ItemBasedItemScorer;
+import org.lenskit.api.ItemRecommender;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.RatingPredictor;
+import org.lenskit.api.Recommender;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.basic.AbstractItemBasedItemRecommender;
+import org.lenskit.results.Results;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class RelatedItemsCacheTest {
+    private static final ResultList EMPTY = Results.newResultList(Collections.<Result>emptyList());
+
+    @Test
+    public void testColdCandidateNotAdmitted() {
+        // a weight of 1 per entry: the window holds 1 entry, the main segments 9
+        RelatedItemsCache.State state = new RelatedItemsCache.State(null, null, null, 10);
+        for (int i = 1; i <= 10; i++) {
+            access(state, i);
+        }
+        assertEquals(10, state.entries.size());
+        // make 1..9 popular; 10 is still in the window
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i <= 9; i++) {
+                assertNotNull(state.get(key(i)));
+            }
+        }
+
+        // 100 pushes 10 out of the window, and 10 loses against the oldest probationary entry
+        assertEquals(1, access(state, 100));
+        assertEquals(10, state.entries.size());
+        assertFalse(state.entries.containsKey(key(10)));
+        assertTrue(state.entries.containsKey(key(100)));
+        for (int i = 1; i <= 9; i++) {
+            assertTrue(state.entries.containsKey(key(i)));
+        }
+    }
+
+    @Test
+    public void testFrequentCandidateAdmitted() {
+        RelatedItemsCache.State state = new RelatedItemsCache.State(null, null, null, 10);
+        for (int i = 1; i <= 10; i++) {
+            access(state, i);
+        }
+        // 200 has been asked for often before it is cached
+        for (int round = 0; round < 5; round++) {
+            assertNull(state.get(key(200)));
+        }
+        access(state, 200);
+        assertTrue(state.entries.containsKey(key(200)));
+
+        // 300 pushes 200 out of the window; 200 evicts an entry asked for only once
+        assertEquals(1, access(state, 300));
+        assertEquals(10, state.entries.size());
+        assertTrue(state.entries.containsKey(key(200)));
+        assertTrue(state.entries.containsKey(key(300)));
+    }
+
+    @Test
+    public void testWeightBound() {
+        RelatedItemsCache.State state = new RelatedItemsCache.State(null, null, null, 20);
+        assertEquals(0, state.put(key(1), EMPTY, 21));
+        assertFalse(state.entries.containsKey(key(1)));
+
+        int evicted = 0;
+        for (int i = 1; i <= 50; i++) {
+            assertNull(state.get(key(i)));
+            evicted += state.put(key(i), EMPTY, 3);
+            assertTrue(state.entries.size() * 3 <= 20);
+        }
+        assertEquals(6, state.entries.size());
+        assertEquals(44, evicted);
+    }
+
+    @Test
+    public void testKeyCanonical() {
+        assertEquals(new RelatedItemsCache.Key(Arrays.asList(3L, 1L, 3L), 5),
+                     new RelatedItemsCache.Key(Arrays.asList(1L, 3L), 5));
+        assertNotEquals(new RelatedItemsCache.Key(Arrays.asList(1L, 3L), 5),
+                        new RelatedItemsCache.Key(Arrays.asList(1L, 3L), 4));
+    }
+
+    @Test
+    public void testSwapInvalidates() {
+        CountingRecommender first = new CountingRecommender();
+        CountingRecommender second = new CountingRecommender();
+        ClosingRecommender firstOwner = new ClosingRecommender();
+        RelatedItemsCache cache = new RelatedItemsCache(first, null, firstOwner, 100);
+
+        List<Long> basket = Arrays.asList(1L, 2L);
+        assertSame(first.results, cache.recommend(basket, 3));
+        assertSame(first.results, cache.recommend(basket, 3));
+        assertEquals(1, first.calls);
+        assertEquals(1, cache.size());
+
+        cache.swap(second, null, null);
+        assertEquals(0, cache.size());
+        assertSame(second.results, cache.recommend(basket, 3));
+        assertEquals(1, first.calls);
+        assertEquals(1, second.calls);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertTrue(firstOwner.closed);
+    }
+
+    @Test
+    public void testSwapWaitsForPinnedQueries() {
+        CountingRecommender first = new CountingRecommender();
+        ClosingRecommender firstOwner = new ClosingRecommender();
+        ClosingRecommender secondOwner = new ClosingRecommender();
+        RelatedItemsCache cache = new RelatedItemsCache(first, null, firstOwner, 100);
+
+        RelatedItemsCache.State pinned = cache.acquire();
+        cache.swap(new CountingRecommender(), null, secondOwner);
+        assertFalse(firstOwner.closed);
+        // the pinned query still answers with the old recommender
+        assertSame(first.results, cache.recommend(pinned, Arrays.asList(1L), 3));
+        assertEquals(1, first.calls);
+
+        cache.release(pinned);
+        assertTrue(firstOwner.closed);
+        assertFalse(pinned.isOpen());
+        assertFalse(secondOwner.closed);
+        RelatedItemsCache.State current = cache.acquire();
+        assertNotSame(pinned, current);
+        cache.release(current);
+        assertFalse(secondOwner.closed);
+    }
+
+    @Test
+    public void testRepeatedMissesComputedOnce() {
+        for (long maxWeight: new long[]{100, 0}) {
+            CountingRecommender irec = new CountingRecommender();
+            RelatedItemsCache cache = new RelatedItemsCache(irec, null, null, maxWeight);
+            List<List<Long>> baskets = Arrays.asList(Arrays.asList(1L), Arrays.asList(2L, 3L),
+                                                     Arrays.asList(1L), Arrays.asList(3L, 2L));
+            List<ResultList> recs = cache.recommendAll(baskets, 3, null);
+            assertEquals(4, recs.size());
+            for (ResultList r: recs) {
+                assertSame(irec.results, r);
+            }
+            assertEquals(2, irec.calls);
+            assertEquals(2, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+        }
+    }
+
+    private static RelatedItemsCache.Key key(long item) {
+        return new RelatedItemsCache.Key(Collections.singletonList(item), 5);
+    }
+
+    /**
+     * Look up an entry like the cache does, caching it with weight 1 on a miss.
+     *
+     * @return The number of entries evicted.
+     */
+    private static int access(RelatedItemsCache.State state, long item) {
+        RelatedItemsCache.Key key = key(item);
+        if (state.get(key) != null) {
+            return 0;
+        }
+        return state.put(key, EMPTY, 1);
+    }
+
+    private static class CountingRecommender extends AbstractItemBasedItemRecommender {
+        final ResultList results = Results.newResultList(Results.create(42, 1.0));
+        int calls;
+
+        @Override
+        public ResultList recommendRelatedItemsWithDetails(Set<Long> basket, int n, Set<Long> candidates, Set<Long> exclude) {
+            calls++;
+            return results;
+        }
+    }
+
+    private static class ClosingRecommender implements Recommender {
+        boolean closed;
+
+        @Override
+        public RatingPredictor getRatingPredictor() {
+            return null;
+        }
+
+        @Override
+        public ItemRecommender getItemRecommender() {
+            return null;
+        }
+
+        @Override
+        public ItemScorer getItemScorer() {
+            return null;
+        }
+
+        @Override
+        public ItemBasedItemScorer getItemBasedItemScorer() {
+            return null;
+        }
+
+        @Override
+        public ItemBasedItemRecommender getItemBasedItemRecommender() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            assertFalse("closed twice", closed);
+            closed = true;
+        }
+    }
+}
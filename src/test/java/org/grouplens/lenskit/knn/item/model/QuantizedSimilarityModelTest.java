@@ -0,0 +1,154 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizedSimilarityModelTest {
+    private static final double EPSILON = 1.0e-9;
+
+    /**
+     * Item indices whose gaps cross the 1-, 2- and 3-byte varint boundaries.
+     */
+    private static final int[] BOUNDARY_ITEMS = {
+            0, 1, 128, 257, 16641, 16642, 16770, 33155, 33156, 50000
+    };
+
+    @Test
+    public void test8BitRoundTrip() {
+        Map<Long, Long2DoubleMap> rows = emptyRows(50001);
+        Long2DoubleMap row = new Long2DoubleOpenHashMap();
+        for (int i = 0; i < BOUNDARY_ITEMS.length; i++) {
+            row.put(BOUNDARY_ITEMS[i], (i - 5) * 0.25);
+        }
+        row.put(40000, 1.27);
+        row.put(40001, -1.28);
+        rows.put(7L, row);
+        rows.put(50000L, dense(0, 100, 0.013));
+
+        QuantizedSimilarityModel model = QuantizedSimilarityModelProvider.quantize(new SimilarityMatrixModel(rows), 100);
+        assertEquals(8, model.getScoreBits());
+        checkModel(model, rows, 100, Double.POSITIVE_INFINITY);
+    }
+
+    @Test
+    public void test16BitRoundTripWithClamping() {
+        Map<Long, Long2DoubleMap> rows = emptyRows(50001);
+        Long2DoubleMap row = new Long2DoubleOpenHashMap();
+        for (int i = 0; i < BOUNDARY_ITEMS.length; i++) {
+            row.put(BOUNDARY_ITEMS[i], (i - 5) * 1.5);
+        }
+        // out of the 16-bit range at scale 100
+        row.put(40000, 400.0);
+        row.put(40001, -400.0);
+        rows.put(3L, row);
+        // starts and ends off the skip index boundaries
+        rows.put(4L, dense(5, 83, 0.37));
+        rows.put(16642L, dense(20000, 20300, 2.0));
+
+        QuantizedSimilarityModel model = QuantizedSimilarityModelProvider.quantize(new SimilarityMatrixModel(rows), 100);
+        assertEquals(16, model.getScoreBits());
+        checkModel(model, rows, 100, Short.MAX_VALUE / 100.0);
+        assertEquals(Short.MAX_VALUE / 100.0, model.getNeighbors(3).get(40000), EPSILON);
+        assertEquals(Short.MIN_VALUE / 100.0, model.getNeighbors(3).get(40001), EPSILON);
+    }
+
+    private static Map<Long, Long2DoubleMap> emptyRows(int n) {
+        Map<Long, Long2DoubleMap> rows = new HashMap<>();
+        for (long i = 0; i < n; i++) {
+            rows.put(i, new Long2DoubleOpenHashMap());
+        }
+        return rows;
+    }
+
+    private static Long2DoubleMap dense(int from, int to, double step) {
+        Long2DoubleMap row = new Long2DoubleOpenHashMap();
+        for (int i = from; i < to; i++) {
+            row.put(i, ((i * 7) % 13 - 6) * step);
+        }
+        return row;
+    }
+
+    private static double expected(double sim, double scale, double max) {
+        double q = Math.round(sim * scale) / scale;
+        return Math.max(Math.min(q, max), -max - 1 / scale);
+    }
+
+    private static void checkModel(QuantizedSimilarityModel model, Map<Long, Long2DoubleMap> rows,
+                                   double scale, double max) {
+        for (Map.Entry<Long, Long2DoubleMap> e: rows.entrySet()) {
+            Long2DoubleMap expected = e.getValue();
+            Long2DoubleMap actual = model.getNeighbors(e.getKey());
+            assertEquals(expected.size(), actual.size());
+
+            // lookups, including misses on either side of every neighbor
+            for (Long2DoubleMap.Entry nbr: expected.long2DoubleEntrySet()) {
+                long id = nbr.getLongKey();
+                assertTrue(actual.containsKey(id));
+                assertEquals(expected(nbr.getDoubleValue(), scale, max), actual.get(id), EPSILON);
+                for (long miss: new long[]{id - 1, id + 1}) {
+                    assertEquals(expected.containsKey(miss), actual.containsKey(miss));
+                }
+            }
+            assertFalse(actual.containsKey(-1));
+            assertFalse(actual.containsKey(1000000));
+            if (actual.isEmpty()) {
+                continue;
+            }
+
+            // the cursor visits the neighbors in item order
+            QuantizedSimilarityModel.Cursor cur = ((QuantizedSimilarityModel.Row) actual).cursor();
+            long last = Long.MIN_VALUE;
+            int n = 0;
+            while (cur.next()) {
+                assertTrue(cur.getNeighbor() > last);
+                last = cur.getNeighbor();
+                assertEquals(expected(expected.get(last), scale, max), cur.getScore(), EPSILON);
+                n++;
+            }
+            assertFalse(cur.next());
+            assertEquals(expected.size(), n);
+
+            // so do both entry iterators
+            Long2DoubleMap copy = new Long2DoubleOpenHashMap(actual);
+            assertEquals(expected.keySet(), copy.keySet());
+            ObjectIterator<Long2DoubleMap.Entry> fast =
+                    ((Long2DoubleMap.FastEntrySet) actual.long2DoubleEntrySet()).fastIterator();
+            n = 0;
+            while (fast.hasNext()) {
+                Long2DoubleMap.Entry nbr = fast.next();
+                assertEquals(copy.get(nbr.getLongKey()), nbr.getDoubleValue(), EPSILON);
+                n++;
+            }
+            assertEquals(expected.size(), n);
+        }
+    }
+}
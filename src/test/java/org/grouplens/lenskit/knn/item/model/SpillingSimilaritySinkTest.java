@@ -0,0 +1,109 @@
+/*
+ * LensKit, an open source recommender systems toolkit.
+ * Copyright 2010-2014 LensKit Contributors.  See CONTRIBUTORS.md.
+ * Work on LensKit has been funded by the National Science Foundation under
+ * grants IIS 05-34939, 08-08692, 08-12148, and 10-17697.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+package org.lenskit.knn.item.model;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.util.collections.LongUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpillingSimilaritySinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ForkJoinPool pool;
+
+    @Before
+    public void createPool() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void shutdownPool() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testTruncatedMultiPassMerge() throws Exception {
+        checkAgainstMemory(10, 50, 4);
+    }
+
+    @Test
+    public void testUnlimitedMultiPassMerge() throws Exception {
+        checkAgainstMemory(0, 37, 3);
+    }
+
+    @Test
+    public void testSingleMerge() throws Exception {
+        checkAgainstMemory(10, 100000, 64);
+    }
+
+    /**
+     * Offer the same similarities to a spilling sink with tiny runs and an in-memory sink, and
+     * compare the rows.
+     */
+    private void checkAgainstMemory(int modelSize, int runSize, int fanIn) throws Exception {
+        int nitems = 200;
+        long[] ids = new long[nitems];
+        for (int i = 0; i < nitems; i++) {
+            ids[i] = 1000 + 3 * i;
+        }
+        LongSortedSet universe = LongUtils.packedSet(ids);
+        File dir = folder.newFolder("spill");
+
+        SpillingSimilaritySink spill = new SpillingSimilaritySink(universe, modelSize, dir, pool, runSize, fanIn);
+        InMemorySimilaritySink memory = new InMemorySimilaritySink(universe, modelSize);
+        Random rng = new Random(42);
+        for (int k = 0; k < 20000; k++) {
+            long row = ids[rng.nextInt(nitems)];
+            long col = ids[rng.nextInt(nitems)];
+            // distinct similarities, so truncation has no ties
+            double sim = k / 20000.0 + rng.nextDouble() * 1e-6;
+            spill.put(row, col, sim);
+            memory.put(row, col, sim);
+        }
+
+        Long2ObjectMap<Long2DoubleMap> expected = memory.finishRows();
+        Long2ObjectMap<Long2DoubleMap> actual = spill.finishRows();
+        assertEquals(expected.keySet(), actual.keySet());
+        for (long item: ids) {
+            Map<Long, Double> want = new HashMap<>(expected.get(item));
+            Map<Long, Double> got = new HashMap<>(actual.get(item));
+            assertEquals("row " + item, want, got);
+        }
+        String[] left = dir.list();
+        assertTrue("spill files left behind", left == null || left.length == 0);
+    }
+}